@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Framework dispatch thread cost of bundle events of non repo bundles:
+ * filtered event type, and event handed off to the event consumer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BundleChangedBenchmark {
+
+	FeatureDeploymentListener listener;
+
+	BundleEvent resolved;
+
+	BundleEvent started;
+
+	@Benchmark
+	public void filtered() {
+		listener.bundleChanged(started);
+	}
+
+	@Benchmark
+	public void handoff() {
+		listener.bundleChanged(resolved);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		final DeployerFixture fixture = new DeployerFixture(new File(
+				System.getProperty("java.io.tmpdir"), "benchmark-bundle-changed"));
+		final Bundle bundle = fixture.bundle("plain", null);
+		resolved = new BundleEvent(BundleEvent.RESOLVED, bundle);
+		started = new BundleEvent(BundleEvent.STARTED, bundle);
+		listener = fixture.listener();
+		listener.setReconcile(false);
+		listener.setEventRingSize(64 * 1024);
+		listener.init();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		listener.destroy();
+	}
+
+}
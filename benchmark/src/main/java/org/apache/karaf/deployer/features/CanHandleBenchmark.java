@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of fileinstall asking the deployer about a descriptor, with and
+ * without the decision cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CanHandleBenchmark {
+
+	@Param({ "0", "1024" })
+	int cacheSize;
+
+	File descriptor;
+
+	DeployerFixture fixture;
+
+	FeatureDeploymentListener listener;
+
+	@Param({ "1", "100", "1000", "10000" })
+	int sizeKb;
+
+	@Benchmark
+	public boolean canHandle() {
+		return listener.canHandle(descriptor);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		fixture = new DeployerFixture(new File(
+				System.getProperty("java.io.tmpdir"), "benchmark-can-handle"));
+		descriptor = Descriptors.write(new File(fixture.folder, "descriptor-"
+				+ sizeKb + "." + FeatureDeploymentListener.EXTENSION), sizeKb);
+		listener = fixture.listener();
+		listener.setCanHandleCacheSize(cacheSize);
+		listener.setReconcile(false);
+		listener.init();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		listener.destroy();
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * In process load test: storm of repo bundle upgrades against the deployer
+ * wired to the test fixture framework and features service with configurable latency.
+ * <p>
+ * Each upgrade replaces the bundle of a random repo: INSTALLED and RESOLVED
+ * of new bundle, then UNINSTALLED of the old one, like fileinstall update of
+ * a repo file. Reports throughput, settle latency from last upgrade of a
+ * repo to its final add, deployer thread counts and lock contention.
+ * <p>
+ * Arguments: repos, upgrades, latency millis, executor threads, coalesce
+ * window millis.
+ */
+public class DeployStorm {
+
+	static int argument(final String[] args, final int index,
+			final int value) {
+		return args.length > index ? Integer.parseInt(args[index]) : value;
+	}
+
+	public static void main(final String[] args) throws Exception {
+
+		final int repoCount = argument(args, 0, 200);
+		final int upgradeCount = argument(args, 1, 5000);
+		final int latency = argument(args, 2, 20);
+		final int threads = argument(args, 3, 4);
+		final int window = argument(args, 4, 250);
+
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean.isThreadContentionMonitoringSupported()) {
+			threadBean.setThreadContentionMonitoringEnabled(true);
+		}
+
+		final DeployerFixture fixture = new DeployerFixture(new File(
+				System.getProperty("java.io.tmpdir"), "deploy-storm"));
+		fixture.latency = latency;
+
+		final FeatureDeploymentListener listener = fixture.listener();
+		/** batched state sync, as deployed */
+		listener.setStateSyncDelay(100);
+		listener.setExecutorThreads(threads);
+		listener.setCoalesceWindow(window);
+		listener.setReconcile(false);
+		listener.setEventRingSize(upgradeCount * 4);
+		listener.init();
+
+		final Random random = new Random(1);
+		final Bundle[] current = new Bundle[repoCount];
+		final Map<String, Long> eventTimeMap = new ConcurrentHashMap<String, Long>();
+		/** bundle events dispatched to the deployer */
+		long eventCount = 0;
+
+		final long timeStart = System.nanoTime();
+		for (int index = 0; index < upgradeCount; index++) {
+			final int repo = random.nextInt(repoCount);
+			final String name = "repo-" + repo;
+			final Bundle bundle = fixture.bundle(name, "<features name=\""
+					+ name + "\"/>\n");
+			eventTimeMap.put(name, System.nanoTime());
+			fixture.fire(bundle, BundleEvent.INSTALLED);
+			fixture.fire(bundle, BundleEvent.RESOLVED);
+			eventCount += 2;
+			final Bundle previous = current[repo];
+			if (previous != null) {
+				fixture.fire(previous, BundleEvent.UNINSTALLED);
+				eventCount++;
+			}
+			current[repo] = bundle;
+		}
+		final long timeFired = System.nanoTime();
+
+		final int peakThreads = quiesce(listener);
+		final long timeDone = System.nanoTime();
+
+		final List<Long> settleList = new ArrayList<Long>();
+		for (final Map.Entry<String, Long> entry : eventTimeMap.entrySet()) {
+			final Long added = fixture.addTimeMap.get(entry.getKey());
+			if (added != null) {
+				settleList.add((added - entry.getValue()) / 1000000);
+			}
+		}
+		Collections.sort(settleList);
+
+		long blockedCount = 0;
+		long blockedTime = 0;
+		long waitedCount = 0;
+		for (final ThreadInfo info : threadBean.getThreadInfo(threadBean
+				.getAllThreadIds())) {
+			if (info == null || !info.getThreadName().startsWith("# ")) {
+				continue;
+			}
+			blockedCount += info.getBlockedCount();
+			blockedTime += Math.max(0, info.getBlockedTime());
+			waitedCount += info.getWaitedCount();
+		}
+
+		final DeployerMetricsMXBean metrics = listener.getMetrics();
+		final double seconds = (timeDone - timeStart) / 1e9;
+		final long operations = fixture.addCount.get()
+				+ fixture.removeCount.get();
+
+		System.out.println("repos: " + repoCount + " upgrades: "
+				+ upgradeCount + " bundle events: " + eventCount
+				+ " latency ms: " + latency + " threads: " + threads
+				+ " window ms: " + window);
+		System.out.println("fire ms: " + (timeFired - timeStart) / 1000000
+				+ " settle ms: " + (timeDone - timeFired) / 1000000);
+		System.out.println("repo operations: " + operations + " adds: "
+				+ fixture.addCount.get() + " removes: "
+				+ fixture.removeCount.get()
+				+ " coalesced: " + listener.getCoalescedCount());
+		System.out.println("throughput upgrades/s: "
+				+ Math.round(upgradeCount / seconds) + " bundle events/s: "
+				+ Math.round(eventCount / seconds) + " operations/s: "
+				+ Math.round(operations / seconds));
+		System.out.println("repo add latency us p50: "
+				+ metrics.getRepoAddP50() + " p99: " + metrics.getRepoAddP99()
+				+ " max: " + metrics.getRepoAddMax());
+		System.out.println("settle latency ms p50: " + percentile(settleList, 0.50)
+				+ " p99: " + percentile(settleList, 0.99) + " max: "
+				+ percentile(settleList, 1.0));
+		System.out.println("threads peak: " + peakThreads + " jvm peak: "
+				+ threadBean.getPeakThreadCount());
+		System.out.println("deployer threads blocked: " + blockedCount
+				+ " blocked ms: " + blockedTime + " waited: " + waitedCount);
+		System.out.println("ring overflow: "
+				+ metrics.getEventRingOverflowCount() + " failures: "
+				+ metrics.getFailureCounts());
+
+		final int present = fixture.repoMap.size();
+		listener.destroy();
+		System.out.println("repos present: " + present + " of " + repoCount);
+
+	}
+
+	static long percentile(final List<Long> sorted, final double fraction) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		final int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	/** wait until every repo has settled; returns peak thread count */
+	static int quiesce(final FeatureDeploymentListener listener)
+			throws InterruptedException {
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		int peak = 0;
+		int idle = 0;
+		while (idle < 3) {
+			Thread.sleep(50);
+			peak = Math.max(peak, threadBean.getThreadCount());
+			final boolean isIdle = listener.getEventRingPending() == 0
+					&& listener.getCoalescePending() == 0
+					&& listener.getExecutorLaneCount() == 0
+					&& listener.getRepoWaitCount() == 0;
+			idle = isIdle ? idle + 1 : 0;
+		}
+		return peak;
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Synthetic feature descriptors of given size.
+ */
+public class Descriptors {
+
+	/** write descriptor of about given size in kilobytes */
+	public static File write(final File file, final int kilobytes)
+			throws IOException {
+		file.getParentFile().mkdirs();
+		final long limit = kilobytes * 1024L;
+		final Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			long size = 0;
+			size += write(writer, "<features name=\"benchmark\" "
+					+ "xmlns=\"http://karaf.apache.org/xmlns/features/v1.0.0\">\n");
+			for (int index = 0; size < limit; index++) {
+				size += write(writer, "  <feature name=\"feature-" + index
+						+ "\" version=\"1.0." + index + "\">\n");
+				size += write(writer, "    <bundle>mvn:org.example/bundle-"
+						+ index + "/1.0." + index + "</bundle>\n");
+				size += write(writer, "  </feature>\n");
+			}
+			write(writer, "</features>\n");
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	static int write(final Writer writer, final String text)
+			throws IOException {
+		writer.write(text);
+		return text.length();
+	}
+
+	private Descriptors() {
+	}
+
+}
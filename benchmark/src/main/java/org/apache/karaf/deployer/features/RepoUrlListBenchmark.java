@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Repo entry lookup on fixture bundles: bundle entry search against entry
+ * index hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RepoUrlListBenchmark {
+
+	FeatureDeploymentListener listener;
+
+	Bundle plainBundle;
+
+	Bundle repoBundle;
+
+	@Benchmark
+	public List<URL> indexedPlain() {
+		return listener.repoUrlListIndexed(plainBundle);
+	}
+
+	@Benchmark
+	public List<URL> indexedRepo() {
+		return listener.repoUrlListIndexed(repoBundle);
+	}
+
+	@Benchmark
+	public List<URL> searchPlain() {
+		return listener.repoUrlList(plainBundle);
+	}
+
+	@Benchmark
+	public List<URL> searchRepo() {
+		return listener.repoUrlList(repoBundle);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		final DeployerFixture fixture = new DeployerFixture(new File(
+				System.getProperty("java.io.tmpdir"), "benchmark-url-list"));
+		plainBundle = fixture.bundle("plain", null);
+		repoBundle = fixture.bundle("repo", "<features name=\"repo\"/>\n");
+		listener = fixture.listener();
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of repository bundle generation from a descriptor, and of read
+ * back of the descriptor entry from the generated bundle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+	final byte[] buffer = new byte[8192];
+
+	/** bundle generated in setup, for read back */
+	File bundle;
+
+	/** descriptor entry of the bundle */
+	String entry;
+
+	@Param({ "deflated", "stored" })
+	String method;
+
+	@Param({ "1", "100", "1000", "10000" })
+	int sizeKb;
+
+	URL url;
+
+	int entryMethod() {
+		return "stored".equals(method) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+	}
+
+	/** descriptor size, read from the bundle as the framework does */
+	@Benchmark
+	public long readBack() throws Exception {
+		final JarFile jar = new JarFile(bundle);
+		long size = 0;
+		try {
+			final InputStream input = jar.getInputStream(jar.getEntry(entry));
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				size += count;
+			}
+			input.close();
+		} finally {
+			jar.close();
+		}
+		return size;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		final File folder = new File(System.getProperty("java.io.tmpdir"),
+				"benchmark-transform");
+		url = Descriptors.write(
+				new File(folder, "benchmark-" + sizeKb + "-1.0.0.xml"), sizeKb)
+				.toURI().toURL();
+		entry = "META-INF/" + FeatureDeploymentListener.FEATURE_PATH + "/"
+				+ FeatureTransformerXXX.getName(url);
+		bundle = new File(folder, "benchmark-" + sizeKb + "-" + method
+				+ ".jar");
+		final InputStream input = FeatureTransformerXXX.transform(url,
+				entryMethod());
+		final OutputStream output = new FileOutputStream(bundle);
+		try {
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, count);
+			}
+		} finally {
+			output.close();
+			input.close();
+		}
+	}
+
+	/** bundle size, consumed as fileinstall would */
+	@Benchmark
+	public long transform() throws Exception {
+		final InputStream input = FeatureTransformerXXX.transform(url,
+				entryMethod());
+		long size = 0;
+		try {
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				size += count;
+			}
+		} finally {
+			input.close();
+		}
+		return size;
+	}
+
+}
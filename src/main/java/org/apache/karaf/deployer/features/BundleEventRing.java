@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Bounded lock-free ring of captured bundle events.
+ * <p>
+ * Multi producer array queue with per slot sequence numbers: producers claim
+ * a slot with one compare and set, and never block; when the ring is full
+ * the event is rejected and counted. Consumer parks while the ring is empty
+ * and is woken up by the producers.
+ */
+class BundleEventRing {
+
+	/** minimal capture of framework event */
+	static class Event {
+
+		final Bundle bundle;
+
+		/** capture time, nanos */
+		final long time;
+
+		final int type;
+
+		Event(final Bundle bundle, final int type, final long time) {
+			this.bundle = bundle;
+			this.type = type;
+			this.time = time;
+		}
+
+	}
+
+	/** next slot to poll */
+	private final AtomicLong head = new AtomicLong();
+
+	private final int mask;
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	/** slot sequence: index when free, index + 1 when filled */
+	private final AtomicLongArray sequence;
+
+	private final AtomicReferenceArray<Event> slot;
+
+	/** next slot to offer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** parked consumer, if any */
+	private volatile Thread waiter;
+
+	BundleEventRing(final int size) {
+		final int capacity = capacity(size);
+		this.mask = capacity - 1;
+		this.sequence = new AtomicLongArray(capacity);
+		this.slot = new AtomicReferenceArray<Event>(capacity);
+		for (int index = 0; index < capacity; index++) {
+			sequence.set(index, index);
+		}
+	}
+
+	/** round up to power of two */
+	static int capacity(final int size) {
+		int capacity = 2;
+		while (capacity < size) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Park consumer until event is offered or timeout expires; returns
+	 * immediately when ring has events.
+	 */
+	void await(final long timeout, final TimeUnit unit) {
+		waiter = Thread.currentThread();
+		try {
+			if (isEmpty()) {
+				LockSupport.parkNanos(this, unit.toNanos(timeout));
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** false when ring is full */
+	boolean offer(final Bundle bundle, final int type, final long time) {
+		long position = tail.get();
+		while (true) {
+			final int index = (int) position & mask;
+			final long delta = sequence.get(index) - position;
+			if (delta == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slot.lazySet(index, new Event(bundle, type, time));
+					sequence.set(index, position + 1);
+					break;
+				}
+				position = tail.get();
+			} else if (delta < 0) {
+				overflowCount.incrementAndGet();
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+		final Thread waiter = this.waiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+		return true;
+	}
+
+	long overflowCount() {
+		return overflowCount.get();
+	}
+
+	/** null when ring is empty */
+	Event poll() {
+		long position = head.get();
+		while (true) {
+			final int index = (int) position & mask;
+			final long delta = sequence.get(index) - (position + 1);
+			if (delta == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					final Event event = slot.get(index);
+					slot.lazySet(index, null);
+					sequence.set(index, position + mask + 1);
+					return event;
+				}
+				position = head.get();
+			} else if (delta < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+	}
+
+	int size() {
+		final long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) Math.min(size, capacity());
+	}
+
+}
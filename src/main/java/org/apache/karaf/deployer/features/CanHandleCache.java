@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of {@link FeatureDeploymentListener#canHandle(File)}
+ * decisions.
+ * <p>
+ * Entry is keyed by artifact path and is valid while file size and
+ * modification time stay the same, so repeat poll of unchanged file costs
+ * a single file attribute lookup.
+ * <p>
+ * Optional content digest guards against coarse file system time stamps, at
+ * the price of reading the file on every lookup.
+ */
+class CanHandleCache {
+
+	static class Record {
+
+		final boolean decision;
+		final String digest;
+		final long modified;
+		final long size;
+
+		Record(long size, long modified, String digest, boolean decision) {
+			this.size = size;
+			this.modified = modified;
+			this.digest = digest;
+			this.decision = decision;
+		}
+
+	}
+
+	private final int capacity;
+
+	private final Map<String, Record> entryMap;
+
+	private final AtomicLong evictCount = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final Logger logger = LoggerFactory
+			.getLogger(CanHandleCache.class);
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final boolean useDigest;
+
+	CanHandleCache(final int capacity, final boolean useDigest) {
+		this.capacity = capacity;
+		this.useDigest = useDigest;
+		this.entryMap = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Record> eldest) {
+				if (size() > CanHandleCache.this.capacity) {
+					evictCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/** size and modification time in one stat, or null when file is missing */
+	static BasicFileAttributes attributes(File artifact) {
+		try {
+			return Files.readAttributes(artifact.toPath(),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	synchronized void clear() {
+		entryMap.clear();
+	}
+
+	long evictCount() {
+		return evictCount.get();
+	}
+
+	long hitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Cached decision for the artifact, or null when artifact is unknown,
+	 * changed or deleted.
+	 */
+	Boolean lookup(File artifact) {
+
+		String key = artifact.getAbsolutePath();
+
+		BasicFileAttributes attributes = attributes(artifact);
+
+		if (attributes == null) {
+			remove(key);
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		long modified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+
+		Record entry;
+		synchronized (this) {
+			entry = entryMap.get(key);
+		}
+
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		boolean isSame = entry.modified == modified && entry.size == size;
+
+		if (useDigest) {
+			String digest = digestOf(artifact);
+			if (digest != null && digest.equals(entry.digest)) {
+				if (!isSame) {
+					refresh(artifact, size, modified, digest, entry.decision);
+				}
+				hitCount.incrementAndGet();
+				return entry.decision;
+			}
+			isSame = false;
+		}
+
+		if (isSame) {
+			hitCount.incrementAndGet();
+			return entry.decision;
+		}
+
+		remove(key);
+		missCount.incrementAndGet();
+		return null;
+
+	}
+
+	long missCount() {
+		return missCount.get();
+	}
+
+	synchronized void remove(String key) {
+		entryMap.remove(key);
+	}
+
+	synchronized int size() {
+		return entryMap.size();
+	}
+
+	/** remember decision for artifact state observed before the decision */
+	void store(File artifact, long size, long modified, boolean decision) {
+		if (modified == 0L) {
+			return;
+		}
+		String digest = useDigest ? digestOf(artifact) : null;
+		Record entry = new Record(size, modified, digest, decision);
+		synchronized (this) {
+			entryMap.put(artifact.getAbsolutePath(), entry);
+		}
+	}
+
+	private String digestOf(File artifact) {
+		try {
+			return DigestUtil.digest(artifact);
+		} catch (Exception e) {
+			logger.debug("Unable to digest " + artifact, e);
+			return null;
+		}
+	}
+
+	/** same content under new time stamp */
+	private void refresh(File artifact, long size, long modified,
+			String digest, boolean decision) {
+		Record fresh = new Record(size, modified, digest, decision);
+		synchronized (this) {
+			entryMap.put(artifact.getAbsolutePath(), fresh);
+		}
+	}
+
+}
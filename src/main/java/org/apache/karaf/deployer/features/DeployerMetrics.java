@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the deployer; queue depths are read
+ * from the listener on demand.
+ */
+class DeployerMetrics implements DeployerMetricsMXBean {
+
+	/** platform mbean name */
+	static final String NAME = "org.apache.karaf.deployer.features:type=FeatureDeploymentListener";
+
+	private final LatencyHistogram canHandle = new LatencyHistogram();
+
+	private final ConcurrentHashMap<String, AtomicLong> failureMap = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final LatencyHistogram hasRepo = new LatencyHistogram();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final FeatureDeploymentListener listener;
+
+	/** registered name, present between register and unregister */
+	private volatile ObjectName objectName;
+
+	private final LatencyHistogram repoAdd = new LatencyHistogram();
+
+	private final LatencyHistogram repoRemove = new LatencyHistogram();
+
+	DeployerMetrics(final FeatureDeploymentListener listener) {
+		this.listener = listener;
+	}
+
+	void canHandle(final long nanos) {
+		canHandle.record(nanos);
+	}
+
+	void enter() {
+		inFlight.incrementAndGet();
+	}
+
+	void exit() {
+		inFlight.decrementAndGet();
+	}
+
+	void failure(final Throwable e) {
+		final String type = e.getClass().getName();
+		AtomicLong counter = failureMap.get(type);
+		if (counter == null) {
+			counter = new AtomicLong();
+			final AtomicLong present = failureMap.putIfAbsent(type, counter);
+			if (present != null) {
+				counter = present;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	public int getBatchPending() {
+		return listener.getBatchPending();
+	}
+
+	public long getCanHandleCount() {
+		return canHandle.count();
+	}
+
+	public long getCanHandleMean() {
+		return canHandle.mean();
+	}
+
+	public long getCanHandleP99() {
+		return canHandle.percentile(0.99);
+	}
+
+	public int getCoalescePending() {
+		return listener.getCoalescePending();
+	}
+
+	public long getEventRingOverflowCount() {
+		return listener.getEventRingOverflowCount();
+	}
+
+	public int getEventRingPending() {
+		return listener.getEventRingPending();
+	}
+
+	public int getExecutorActiveCount() {
+		return listener.getExecutorActiveCount();
+	}
+
+	public int getExecutorLaneCount() {
+		return listener.getExecutorLaneCount();
+	}
+
+	public int getExecutorLanePending() {
+		return listener.getExecutorLanePending();
+	}
+
+	public int getExecutorQueueDepth() {
+		return listener.getExecutorQueueDepth();
+	}
+
+	public long getExecutorRejectedCount() {
+		return listener.getExecutorRejectedCount();
+	}
+
+	public Map<String, Long> getFailureCounts() {
+		final Map<String, Long> countMap = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> entry : failureMap
+				.entrySet()) {
+			countMap.put(entry.getKey(), entry.getValue().get());
+		}
+		return countMap;
+	}
+
+	public long getHasRepoCount() {
+		return hasRepo.count();
+	}
+
+	public long getHasRepoMean() {
+		return hasRepo.mean();
+	}
+
+	public long getHasRepoP99() {
+		return hasRepo.percentile(0.99);
+	}
+
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	public long getRepoAddCount() {
+		return repoAdd.count();
+	}
+
+	public long getRepoAddMax() {
+		return repoAdd.max();
+	}
+
+	public long getRepoAddMean() {
+		return repoAdd.mean();
+	}
+
+	public long getRepoAddP50() {
+		return repoAdd.percentile(0.50);
+	}
+
+	public long getRepoAddP99() {
+		return repoAdd.percentile(0.99);
+	}
+
+	public long getRepoRemoveCount() {
+		return repoRemove.count();
+	}
+
+	public long getRepoRemoveMax() {
+		return repoRemove.max();
+	}
+
+	public long getRepoRemoveMean() {
+		return repoRemove.mean();
+	}
+
+	public long getRepoRemoveP50() {
+		return repoRemove.percentile(0.50);
+	}
+
+	public long getRepoRemoveP99() {
+		return repoRemove.percentile(0.99);
+	}
+
+	public int getRepoWaitCount() {
+		return listener.getRepoWaitCount();
+	}
+
+	public long getRepoWaitTime() {
+		return listener.getRepoWaitTime();
+	}
+
+	void hasRepo(final long nanos) {
+		hasRepo.record(nanos);
+	}
+
+	/** publish on platform mbean server */
+	void register() throws Exception {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName objectName = new ObjectName(NAME);
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	void repoAdd(final long nanos) {
+		repoAdd.record(nanos);
+	}
+
+	void repoRemove(final long nanos) {
+		repoRemove.record(nanos);
+	}
+
+	public void reset() {
+		canHandle.clear();
+		hasRepo.clear();
+		repoAdd.clear();
+		repoRemove.clear();
+		failureMap.clear();
+	}
+
+	void unregister() throws Exception {
+		final ObjectName objectName = this.objectName;
+		if (objectName == null) {
+			return;
+		}
+		this.objectName = null;
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+	}
+
+}
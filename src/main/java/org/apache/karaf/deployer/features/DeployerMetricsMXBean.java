@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.Map;
+
+/**
+ * Deployment metrics of the feature deployer, published over JMX.
+ * <p>
+ * Latencies are micros, percentiles are bucket upper bounds.
+ */
+public interface DeployerMetricsMXBean {
+
+	int getBatchPending();
+
+	long getCanHandleCount();
+
+	long getCanHandleMean();
+
+	long getCanHandleP99();
+
+	int getCoalescePending();
+
+	long getEventRingOverflowCount();
+
+	int getEventRingPending();
+
+	int getExecutorActiveCount();
+
+	int getExecutorLaneCount();
+
+	int getExecutorLanePending();
+
+	int getExecutorQueueDepth();
+
+	long getExecutorRejectedCount();
+
+	/** failure count by exception class name */
+	Map<String, Long> getFailureCounts();
+
+	long getHasRepoCount();
+
+	long getHasRepoMean();
+
+	long getHasRepoP99();
+
+	/** repo operations currently running */
+	int getInFlightCount();
+
+	long getRepoAddCount();
+
+	long getRepoAddMax();
+
+	long getRepoAddMean();
+
+	long getRepoAddP50();
+
+	long getRepoAddP99();
+
+	long getRepoRemoveCount();
+
+	long getRepoRemoveMax();
+
+	long getRepoRemoveMean();
+
+	long getRepoRemoveP50();
+
+	long getRepoRemoveP99();
+
+	int getRepoWaitCount();
+
+	/** total time repo adds spent parked for repo remove, millis */
+	long getRepoWaitTime();
+
+	/** reset latency histograms and failure counts */
+	void reset();
+
+}
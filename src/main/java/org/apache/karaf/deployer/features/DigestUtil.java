@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content digest helpers shared by deployer components.
+ */
+class DigestUtil {
+
+	/** digest algorithm, available on every jvm */
+	static final String ALGORITHM = "SHA-1";
+
+	static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** hex digest of file content */
+	static String digest(File file) throws IOException {
+		return digest(new FileInputStream(file));
+	}
+
+	/** hex digest of url content */
+	static String digest(URL url) throws IOException {
+		return digest(url.openStream());
+	}
+
+	/** hex digest of stream content; closes the stream */
+	static String digest(InputStream input) throws IOException {
+		try {
+			MessageDigest digest = newDigest();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				digest.update(buffer, 0, count);
+			}
+			return hex(digest.digest());
+		} finally {
+			input.close();
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		char[] text = new char[bytes.length * 2];
+		for (int index = 0; index < bytes.length; index++) {
+			int value = bytes[index] & 0xFF;
+			text[index * 2] = HEX[value >>> 4];
+			text[index * 2 + 1] = HEX[value & 0x0F];
+		}
+		return new String(text);
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private DigestUtil() {
+	}
+
+}
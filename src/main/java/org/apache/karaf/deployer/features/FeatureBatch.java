@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.features.Feature;
+
+/**
+ * Features of repositories added within a short window, collected for a
+ * single install pass.
+ * <p>
+ * First feature added to an empty batch schedules the flush trigger after
+ * the window; the trigger drains the batch.
+ */
+class FeatureBatch {
+
+	/** guarded by this; feature to owner repo uri */
+	private Map<Feature, URI> featureMap = new LinkedHashMap<Feature, URI>();
+
+	private ScheduledFuture<?> flush;
+
+	private final ScheduledExecutorService timer;
+
+	private final Runnable trigger;
+
+	private final long window;
+
+	FeatureBatch(final ScheduledExecutorService timer, final long window,
+			final Runnable trigger) {
+		this.timer = timer;
+		this.window = window;
+		this.trigger = trigger;
+	}
+
+	/** queue features of the repository for next install pass */
+	synchronized void add(final URI repoURI,
+			final Collection<Feature> featureList) {
+		if (featureList.isEmpty()) {
+			return;
+		}
+		for (final Feature feature : featureList) {
+			featureMap.put(feature, repoURI);
+		}
+		if (flush == null) {
+			flush = timer.schedule(trigger, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** take all queued features */
+	synchronized Map<Feature, URI> drain() {
+		if (flush != null) {
+			flush.cancel(false);
+			flush = null;
+		}
+		final Map<Feature, URI> featureMap = this.featureMap;
+		this.featureMap = new LinkedHashMap<Feature, URI>();
+		return featureMap;
+	}
+
+	synchronized int size() {
+		return featureMap.size();
+	}
+
+}
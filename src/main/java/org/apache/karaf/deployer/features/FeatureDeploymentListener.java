@@ -19,24 +19,39 @@ package org.apache.karaf.deployer.features;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
 import org.apache.felix.fileinstall.ArtifactUrlTransformer;
 import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.FeaturesNamespaces;
 import org.apache.karaf.features.FeaturesService;
 import org.apache.karaf.features.FeaturesService.Option;
@@ -44,10 +59,8 @@ import org.apache.karaf.features.Repository;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
-import org.osgi.framework.BundleListener;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * A deployment listener able to hot deploy (install/uninstall) a repository
@@ -64,7 +77,13 @@ import org.xml.sax.SAXParseException;
  * all features inside feature.xml file are managed as single logical unit.
  */
 public class FeatureDeploymentListener implements ArtifactUrlTransformer,
-		BundleListener {
+		SynchronousBundleListener {
+
+	/** lane of batched feature install operations */
+	static final String BATCH_LANE = "# feature batch";
+
+	/** legacy repo install/uninstall state file */
+	static final String CFG = "FeatureDeploymentListener.cfg";
 
 	/** repository feature.xml file extension */
 	static final String EXTENSION = "repository";
@@ -72,29 +91,236 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	/** features folder inside the bundle */
 	static final String FEATURE_PATH = "org.apache.karaf.shell.features";
 
+	/** repo install/uninstall mapped record file */
+	static final String INDEX = "FeatureDeploymentListener.index";
+
+	/** repo install/uninstall journal file */
+	static final String JOURNAL = "FeatureDeploymentListener.journal";
+
 	/** features path inside the bundle jar */
 	static final String META_PATH = "/META-INF/" + FEATURE_PATH + "/";
 
 	/** feature deployer protocol, used by default feature deployer */
 	static final String PROTOCOL = "feature";
 
+	/** executor rejection policy: drop and log the operation */
+	static final String REJECT_ABORT = "abort";
+
+	/**
+	 * executor rejection policy: submitting thread waits for room, up to the
+	 * shutdown timeout; that is the event consumer thread, or the timer
+	 * thread on coalescer flush, so events and timeouts stall meanwhile
+	 */
+	static final String REJECT_WAIT = "wait";
+
 	/** root tag in feature.xml */
 	static final String ROOT_NODE = "features";
 
+	/** state backend: append only journal */
+	static final String STATE_JOURNAL = "journal";
+
+	/** state backend: memory mapped fixed size records */
+	static final String STATE_MAPPED = "mapped";
+
+	/** window to collect repo adds for one install pass, zero to disable */
+	private long batchWindow = 0;
+
 	private BundleContext bundleContext;
 
-	private DocumentBuilderFactory dbf;
+	/** decision cache, present between init and destroy */
+	private volatile CanHandleCache canHandleCache;
+
+	/** validate cached decisions with content digest */
+	private boolean canHandleCacheDigest = false;
+
+	/** maximum number of cached decisions, zero to disable cache */
+	private int canHandleCacheSize = 1024;
+
+	/**
+	 * quiet window of repo events before applying them, zero to disable;
+	 * off by default, since it delays every single repo change
+	 */
+	private long coalesceWindow = 0;
+
+	/** event debounce, present between init and destroy when enabled */
+	private volatile RepoCoalescer coalescer;
+
+	/** consumer of captured bundle events, present between init and destroy */
+	private volatile Thread eventConsumer;
+
+	/** maximum observed delay from event capture to processing, nanos */
+	private final AtomicLong eventLagMax = new AtomicLong();
+
+	/** captured bundle events, present between init and destroy */
+	private volatile BundleEventRing eventRing;
+
+	/** maximum number of captured bundle events waiting for consumer */
+	private int eventRingSize = 1024;
+
+	/** repo add/remove workers, present between init and destroy */
+	private volatile ThreadPoolExecutor executor;
+
+	/** maximum number of repo operations, queued or running, of all repos */
+	private int executorQueueSize = 1000;
+
+	/** rejection policy when the queue is full, see REJECT_* */
+	private String executorRejection = REJECT_ABORT;
+
+	/** time to drain pending operations on destroy, millis */
+	private long executorShutdownTimeout = 30 * 1000;
+
+	/** maximum number of concurrent repo operations */
+	private int executorThreads = 4;
+
+	/** pending repository features, present when batching is enabled */
+	private volatile FeatureBatch featureBatch;
+
+	/** last install time of features installed by the deployer, millis */
+	private final Map<String, Long> featureInstallTimeMap = new ConcurrentHashMap<String, Long>();
+
+	/** parallel feature install, present when feature threads exceed one */
+	private volatile ThreadPoolExecutor featurePool;
+
+	/** maximum number of feature groups installed or removed in parallel */
+	private int featureThreads = 0;
+
+	/** maximum time to wait for single feature uninstall, millis */
+	private long featureTimeout = 5 * 60 * 1000;
+
+	/** last uninstall time of features removed by the deployer, millis */
+	private final Map<String, Long> featureUninstallTimeMap = new ConcurrentHashMap<String, Long>();
 
 	private FeaturesService featuresService;
 
+	/** per repo ordered operations, present between init and destroy */
+	private volatile KeyedSerialExecutor lanes;
+
 	private final Logger logger = LoggerFactory
 			.getLogger(FeatureDeploymentListener.class);
 
+	/** deployment counters and latencies, published over jmx */
+	private final DeployerMetrics metrics = new DeployerMetrics(this);
+
+	/**
+	 * reconcile repo bundles with repositories on start; off by default,
+	 * since orphan remove uninstalls repository features
+	 */
+	private boolean reconcile = false;
+
+	/** number of repos changed by startup reconciliation */
+	private volatile int reconcileCount;
+
+	/** duration of startup reconciliation, millis, or -1 while running */
+	private volatile long reconcileTime;
+
+	/** repo descriptor entries of framework bundles */
+	private final RepoEntryIndex repoEntryIndex = new RepoEntryIndex();
+
+	/** features service repositories by name and uri */
+	private volatile RepoIndex repoIndex;
+
+	/** features listener service feeding the repo index */
+	private ServiceRegistration<?> repoIndexRegistration;
+
+	/** period of repo index verification against features service, millis */
+	private long repoIndexVerifyPeriod = 60 * 1000;
+
+	/** repositories deployed by this listener */
+	private final Map<String, RepoRecord> repoRecordMap = new ConcurrentHashMap<String, RepoRecord>();
+
+	/** repo adds waiting for remove of previous repo with the same name */
+	private volatile RepoSignal repoSignal;
+
+	/** persisted repo records, present between init and destroy */
+	private volatile RepoStore repoStore;
+
+	/** maximum time repo add waits for repo remove, millis */
+	private long repoWaitTimeout = 10 * 60 * 1000;
+
+	/** state backend, see STATE_* */
+	private String stateBackend = STATE_JOURNAL;
+
+	/** delay of batched state fsync, millis, zero to fsync each update */
+	private long stateSyncDelay = 100;
+
+	/** timeouts and delayed operations */
+	private volatile ScheduledExecutorService timer;
+
+	/** trace span exporter set by creator of listener, wins over trace file */
+	private TraceExporter traceExporter;
+
+	/** json trace output, relative to bundle data area, empty for none */
+	private String traceFile = "";
+
+	/** exporter created from trace file, closed by destroy */
+	private TraceExporter traceFileExporter;
+
+	/** spans of deploy operations, exported while exporter is present */
+	private final Tracer tracer = new Tracer();
+
+	/** validate descriptors before repository add */
+	private boolean validate = false;
+
+	/** number of repositories rejected by validation */
+	private final AtomicLong validateRejectCount = new AtomicLong();
+
+	/** streaming parser factory, used to detect root element only */
+	private XMLInputFactory xif;
+
+	/**
+	 * Capture event on framework dispatch thread and hand it off to event
+	 * consumer; nothing here may block or touch bundle content.
+	 */
 	public void bundleChanged(final BundleEvent event) {
 
-		final Bundle bundle = event.getBundle();
+		final int type = event.getType();
+
+		switch (type) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.RESOLVED:
+		case BundleEvent.UNINSTALLED:
+			break;
+		default:
+			return;
+		}
+
+		final BundleEventRing eventRing = this.eventRing;
+
+		if (eventRing == null) {
+			return;
+		}
+
+		if (!eventRing.offer(event.getBundle(), type, System.nanoTime())) {
+			logger.error("Bundle event ring is full, dropped event " + type
+					+ " of " + event.getBundle());
+		}
+
+	}
+
+	/** process captured bundle event on event consumer thread */
+	void bundleEvent(final Bundle bundle, final int type) {
+
+		final List<URL> repoUrlList;
 
-		final List<URL> repoUrlList = repoUrlList(bundle);
+		/** check event type before any entry lookup */
+		switch (type) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.UPDATED:
+			if (bundle.getState() != Bundle.UNINSTALLED) {
+				repoEntryIndex.put(bundle, repoUrlList(bundle));
+			}
+			return;
+		case BundleEvent.RESOLVED:
+			repoUrlList = repoUrlListIndexed(bundle);
+			break;
+		case BundleEvent.UNINSTALLED:
+			repoUrlList = repoUrlListIndexed(bundle);
+			repoEntryIndex.remove(bundle);
+			break;
+		default:
+			return;
+		}
 
 		switch (repoUrlList.size()) {
 		case 0:
@@ -110,54 +336,87 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 		}
 
 		/** artifact id made from feature.xml file name by url transformer */
-		final String repoName = bundle.getSymbolicName().intern();
+		final String repoName = bundle.getSymbolicName();
 
 		final URL repoUrl = repoUrlList.get(0);
 
+		final RepoCoalescer coalescer = this.coalescer;
+
 		/** add */
-		if (event.getType() == BundleEvent.RESOLVED) {
-			new Thread("# repo add " + repoName) {
-				public void run() {
-					while (true) {
-						synchronized (repoName) {
-							if (!hasRepo(repoName)) {
-								repoAdd(repoUrl);
-								return;
-							}
-						}
-						try {
-							logger.info("Waiting for repo remove: " + repoName);
-							Thread.sleep(1000);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				}
-			}.start();
+		if (type == BundleEvent.RESOLVED) {
+			if (coalescer == null) {
+				repoChange(repoName, null, bundle, repoUrl);
+			} else {
+				coalescer.added(repoName, bundle, repoUrl);
+			}
 		}
 
 		/** remove */
-		if (event.getType() == BundleEvent.UNINSTALLED) {
-			new Thread("# repo remove " + repoName) {
-				public void run() {
-					synchronized (repoName) {
-						if (hasRepo(repoName)) {
-							repoRemove(repoUrl);
-						}
-					}
-				}
-			}.start();
+		if (type == BundleEvent.UNINSTALLED) {
+			if (coalescer == null) {
+				repoChange(repoName, repoUrl, null, null);
+			} else {
+				coalescer.removed(repoName, bundle, repoUrl);
+			}
 		}
 
 	}
 
 	public boolean canHandle(File artifact) {
+		final TraceSpan span = tracer.start("canHandle").attribute("file",
+				artifact.getName());
+		final long timeStart = System.nanoTime();
+		try {
+			return canHandleCached(artifact);
+		} finally {
+			metrics.canHandle(System.nanoTime() - timeStart);
+			span.end();
+		}
+	}
+
+	boolean canHandleCached(File artifact) {
+
+		if (!artifact.getName().endsWith("." + EXTENSION)) {
+			return false;
+		}
+
+		final CanHandleCache cache = canHandleCache;
+
+		if (cache == null) {
+			return canHandleParse(artifact);
+		}
+
+		final Boolean cached = cache.lookup(artifact);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		/** capture file state before parse to stay on the safe side */
+		final BasicFileAttributes attributes = CanHandleCache
+				.attributes(artifact);
+
+		final boolean decision = canHandleParse(artifact);
+
+		if (attributes != null) {
+			cache.store(artifact, attributes.size(), attributes
+					.lastModifiedTime().toMillis(), decision);
+		}
+
+		return decision;
+
+	}
+
+	boolean canHandleParse(File artifact) {
 		try {
-			if (artifact.isFile()
-					&& artifact.getName().endsWith("." + EXTENSION)) {
-				Document doc = parse(artifact);
-				String name = doc.getDocumentElement().getLocalName();
-				String uri = doc.getDocumentElement().getNamespaceURI();
+			if (artifact.isFile()) {
+				QName root = parseRoot(artifact);
+				String name = root.getLocalPart();
+				String uri = root.getNamespaceURI();
+				/** dom reports missing namespace as null */
+				if (uri.length() == 0) {
+					uri = null;
+				}
 				if (ROOT_NODE.equals(name)) {
 					if (isKnownFeaturesURI(uri)) {
 						return true;
@@ -175,140 +434,1445 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 		return false;
 	}
 
-	/** component stop */
+	/**
+	 * component stop: stop event intake, drain repo operations and flush
+	 * repo store, and only then drop parked adds and stop the timer which
+	 * the draining operations still use
+	 */
 	public void destroy() throws Exception {
+		try {
+			metrics.unregister();
+		} catch (Exception e) {
+			logger.warn("Failed to unregister deployer metrics", e);
+		}
 		bundleContext.removeBundleListener(this);
+		eventStop();
+		final RepoCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			coalescer.flushAll();
+			logger.info("Coalesced repo events: " + coalescer.coalescedCount());
+			this.coalescer = null;
+		}
+		if (featureBatch != null) {
+			lanes.awaitIdle(executorShutdownTimeout);
+			featureBatchInstall();
+			featureBatch = null;
+		}
+		executorStop();
+		featurePoolStop();
+		repoStoreClose();
+		final int parkedCount = repoSignal.cancelAll();
+		if (parkedCount > 0) {
+			logger.warn("Cancelled repo adds waiting for remove: "
+					+ parkedCount);
+		}
+		timer.shutdownNow();
+		repoIndexStop();
+		repoEntryIndex.clear();
+		final CanHandleCache cache = canHandleCache;
+		if (cache != null) {
+			logger.info("Can handle cache hits: " + cache.hitCount()
+					+ " misses: " + cache.missCount() + " evictions: "
+					+ cache.evictCount());
+			cache.clear();
+			canHandleCache = null;
+		}
+		traceStop();
 	}
 
-	public BundleContext getBundleContext() {
-		return bundleContext;
+	/** drain event ring until stopped, then drain what is left */
+	void eventConsume(final BundleEventRing eventRing) {
+		final Thread thread = Thread.currentThread();
+		while (true) {
+			final BundleEventRing.Event event = eventRing.poll();
+			if (event == null) {
+				if (eventConsumer != thread) {
+					return;
+				}
+				eventRing.await(100, TimeUnit.MILLISECONDS);
+				continue;
+			}
+			final long lag = System.nanoTime() - event.time;
+			while (true) {
+				final long max = eventLagMax.get();
+				if (lag <= max || eventLagMax.compareAndSet(max, lag)) {
+					break;
+				}
+			}
+			try {
+				bundleEvent(event.bundle, event.type);
+			} catch (Throwable e) {
+				logger.error("Bundle event failed: " + event.bundle, e);
+			}
+		}
 	}
 
-	public FeaturesService getFeaturesService() {
-		return featuresService;
+	void eventStart() {
+		final BundleEventRing eventRing = new BundleEventRing(eventRingSize);
+		final Thread thread = new DeployerThreadFactory("# repo event")
+				.newThread(new Runnable() {
+					public void run() {
+						eventConsume(eventRing);
+					}
+				});
+		this.eventRing = eventRing;
+		this.eventConsumer = thread;
+		thread.start();
 	}
 
-	boolean hasRepo(String repoName) {
-		Repository[] list = featuresService.listRepositories();
-		for (Repository repo : list) {
-			if (repoName.equals(repo.getName())) {
-				return true;
+	/** process events captured before listener removal, then stop consumer */
+	void eventStop() throws InterruptedException {
+		final Thread thread = eventConsumer;
+		if (thread == null) {
+			return;
+		}
+		eventConsumer = null;
+		LockSupport.unpark(thread);
+		thread.join(executorShutdownTimeout);
+		if (thread.isAlive()) {
+			logger.error("Bundle event consumer did not finish, pending events: "
+					+ eventRing.size());
+		}
+		logger.info("Bundle event ring overflows: "
+				+ eventRing.overflowCount() + " max lag micros: "
+				+ getEventLagMax());
+		eventRing = null;
+	}
+
+	/**
+	 * Run repo operation on the worker pool, under a descriptive name, after
+	 * operations submitted earlier for the same repo.
+	 */
+	void execute(final String repoName, final String name,
+			final Runnable task) {
+		final KeyedSerialExecutor lanes = this.lanes;
+		if (lanes == null) {
+			logger.error("Deployer is not active, dropping: " + name);
+			return;
+		}
+		final boolean isQueued = lanes.execute(repoName, new Runnable() {
+			public void run() {
+				final Thread thread = Thread.currentThread();
+				final String threadName = thread.getName();
+				thread.setName(name);
+				metrics.enter();
+				final TraceSpan span = tracer.start(name).attribute("repo",
+						repoName);
+				try {
+					task.run();
+				} catch (Throwable e) {
+					metrics.failure(e);
+					span.error(e);
+					logger.error("Repo operation failed: " + name, e);
+				} finally {
+					span.end();
+					metrics.exit();
+					thread.setName(threadName);
+				}
 			}
+		});
+		if (!isQueued) {
+			logger.error("Deployer queue is full or stopped, dropped: "
+					+ name);
 		}
-		return false;
 	}
 
-	/** component start */
-	public void init() throws Exception {
-		bundleContext.addBundleListener(this);
+	void executorStart() {
+		/** lanes bound the operations; pool queue holds at most one per repo */
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				executorThreads, executorThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DeployerThreadFactory("# repo deployer"));
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+		this.lanes = new KeyedSerialExecutor(executor, executorQueueSize,
+				REJECT_WAIT.equals(executorRejection), executorShutdownTimeout);
 	}
 
-	boolean isAutoInstall(Feature feature) {
-		return feature.getInstall() != null
-				&& feature.getInstall().equals(Feature.DEFAULT_INSTALL_MODE);
+	void executorStop() throws InterruptedException {
+		final ThreadPoolExecutor executor = this.executor;
+		if (executor == null) {
+			return;
+		}
+		final KeyedSerialExecutor lanes = this.lanes;
+		if (!lanes.awaitIdle(executorShutdownTimeout)) {
+			logger.error("Repo operations did not finish, pending repos: "
+					+ lanes.laneCount());
+		}
+		lanes.stop();
+		this.lanes = null;
+		this.executor = null;
+		executor.shutdownNow();
+		logger.info("Deployer executor largest pool: "
+				+ executor.getLargestPoolSize() + " completed: "
+				+ executor.getCompletedTaskCount() + " rejected: "
+				+ lanes.rejectedCount());
 	}
 
-	boolean isKnownFeaturesURI(String uri) {
-		if (uri == null) {
-			return true;
+	/**
+	 * Install collected repository features in a single pass, skipping
+	 * features of repositories removed in the mean time.
+	 */
+	void featureBatchInstall() {
+		final FeatureBatch featureBatch = this.featureBatch;
+		if (featureBatch == null) {
+			return;
 		}
-		if (FeaturesNamespaces.URI_0_0_0.equalsIgnoreCase(uri)) {
-			return true;
+		final Map<Feature, URI> featureMap = featureBatch.drain();
+		final Map<URI, Boolean> presentMap = new HashMap<URI, Boolean>();
+		final Set<Feature> featureSet = new LinkedHashSet<Feature>();
+		for (final Map.Entry<Feature, URI> entry : featureMap.entrySet()) {
+			final URI repoURI = entry.getValue();
+			Boolean isPresent = presentMap.get(repoURI);
+			if (isPresent == null) {
+				isPresent = repository(repoURI) != null;
+				presentMap.put(repoURI, isPresent);
+			}
+			if (isPresent) {
+				featureSet.add(entry.getKey());
+			}
 		}
-		if (FeaturesNamespaces.URI_1_0_0.equalsIgnoreCase(uri)) {
-			return true;
+		if (featureSet.isEmpty()) {
+			return;
 		}
-		if (FeaturesNamespaces.URI_1_1_0.equalsIgnoreCase(uri)) {
-			return true;
+		final long timeStart = System.currentTimeMillis();
+		if (featurePool != null) {
+			featureInstall(featureSet);
+		} else {
+			try {
+				featuresService.installFeatures(featureSet,
+						EnumSet.of(Option.ContinueBatchOnFailure));
+			} catch (Exception e) {
+				logger.error("Failed to install feature batch: " + featureSet,
+						e);
+			}
 		}
-		if (FeaturesNamespaces.URI_1_2_0.equalsIgnoreCase(uri)) {
-			return true;
+		logger.info("Installed feature batch, features: " + featureSet.size()
+				+ " time: " + (System.currentTimeMillis() - timeStart) + " ms");
+	}
+
+	/**
+	 * Install features with independent dependency groups in parallel on the
+	 * feature pool; features of one group install one by one, timed.
+	 */
+	void featureInstall(final Collection<Feature> featureList) {
+		final ThreadPoolExecutor featurePool = this.featurePool;
+		if (featureList.isEmpty() || featurePool == null) {
+			return;
 		}
-		if (FeaturesNamespaces.URI_CURRENT.equalsIgnoreCase(uri)) {
-			return true;
+		final long timeStart = System.currentTimeMillis();
+		final TraceSpan span = tracer.start("feature install").attribute(
+				"features", featureList.size());
+		final List<List<Feature>> groupList = new FeatureGraph(
+				featuresService).groups(featureList);
+		span.attribute("groups", groupList.size());
+		final List<Callable<Void>> taskList = new ArrayList<Callable<Void>>();
+		for (final List<Feature> group : groupList) {
+			taskList.add(new Callable<Void>() {
+				public Void call() {
+					/** pool thread: parent handed over explicitly */
+					final TraceSpan groupSpan = tracer.start("feature group",
+							span).attribute("features", group.size());
+					try {
+						for (final Feature feature : group) {
+							featureInstallTimed(feature);
+						}
+					} finally {
+						groupSpan.end();
+					}
+					return null;
+				}
+			});
 		}
-		return false;
+		try {
+			featurePool.invokeAll(taskList);
+		} catch (InterruptedException e) {
+			span.error(e);
+			logger.error("Interrupted feature install: " + featureList);
+			Thread.currentThread().interrupt();
+		} finally {
+			span.end();
+		}
+		logger.info("Installed features: " + featureList.size() + " groups: "
+				+ groupList.size() + " time: "
+				+ (System.currentTimeMillis() - timeStart) + " ms");
 	}
 
-	protected Document parse(File artifact) throws Exception {
-		if (dbf == null) {
-			dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(true);
+	void featureInstallTimed(final Feature feature) {
+		if (featuresService.isInstalled(feature)) {
+			return;
 		}
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		db.setErrorHandler(new ErrorHandler() {
-			public void error(SAXParseException exception) throws SAXException {
-			}
+		final long timeStart = System.currentTimeMillis();
+		final TraceSpan span = tracer.start("installFeature").attribute(
+				"feature", feature.getId());
+		try {
+			featuresService.installFeature(feature,
+					EnumSet.noneOf(Option.class));
+		} catch (Exception e) {
+			metrics.failure(e);
+			span.error(e);
+			logger.error("Failed to install feature: " + feature.getId(), e);
+			return;
+		} finally {
+			span.end();
+		}
+		featureInstallTimeMap.put(feature.getId(), System.currentTimeMillis()
+				- timeStart);
+	}
 
-			public void fatalError(SAXParseException exception)
-					throws SAXException {
-				throw exception;
-			}
+	void featurePoolStart() {
+		if (featureThreads <= 1) {
+			return;
+		}
+		final ThreadPoolExecutor featurePool = new ThreadPoolExecutor(
+				featureThreads, featureThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DeployerThreadFactory("# feature worker"));
+		featurePool.allowCoreThreadTimeOut(true);
+		this.featurePool = featurePool;
+	}
 
-			public void warning(SAXParseException exception)
-					throws SAXException {
-			}
-		});
-		return db.parse(artifact);
+	void featurePoolStop() {
+		final ThreadPoolExecutor featurePool = this.featurePool;
+		if (featurePool == null) {
+			return;
+		}
+		this.featurePool = null;
+		featurePool.shutdownNow();
 	}
 
-	boolean repoAdd(URL repoUrl) {
-		try {
-			featuresService.addRepository(repoUrl.toURI(), true);
-			return true;
-		} catch (Exception e) {
-			logger.error("Failed to add repository: " + repoUrl, e);
-			return false;
+	/**
+	 * Uninstall installed features of the repository in reverse dependency
+	 * waves, features of one wave in parallel on the feature pool; waits for
+	 * each feature at most feature timeout.
+	 */
+	void featureUninstall(final URI repoURI) throws Exception {
+		final ThreadPoolExecutor featurePool = this.featurePool;
+		final Repository repo = repository(repoURI);
+		if (featurePool == null || repo == null) {
+			return;
+		}
+		final List<Feature> featureList = new ArrayList<Feature>();
+		for (final Feature feature : repo.getFeatures()) {
+			if (featuresService.isInstalled(feature)) {
+				featureList.add(feature);
+			}
+		}
+		if (featureList.isEmpty()) {
+			return;
+		}
+		final long timeStart = System.currentTimeMillis();
+		final List<List<Feature>> waveList = new FeatureGraph(featuresService)
+				.waves(featureList);
+		for (final List<Feature> wave : waveList) {
+			final TraceSpan span = tracer.start("feature wave").attribute(
+					"features", wave.size());
+			final Map<Feature, Future<?>> futureMap = new LinkedHashMap<Feature, Future<?>>();
+			for (final Feature feature : wave) {
+				futureMap.put(feature, featurePool.submit(new Runnable() {
+					public void run() {
+						featureUninstallTimed(feature, span);
+					}
+				}));
+			}
+			try {
+				for (final Map.Entry<Feature, Future<?>> entry : futureMap
+						.entrySet()) {
+					try {
+						entry.getValue().get(featureTimeout,
+								TimeUnit.MILLISECONDS);
+					} catch (TimeoutException e) {
+						span.error(e);
+						logger.error("Feature uninstall timed out, proceeding: "
+								+ entry.getKey().getId());
+					}
+				}
+			} finally {
+				span.end();
+			}
 		}
+		logger.info("Uninstalled features: " + featureList.size()
+				+ " waves: " + waveList.size() + " time: "
+				+ (System.currentTimeMillis() - timeStart) + " ms");
 	}
 
-	boolean repoRemove(URL repoUrl) {
+	void featureUninstallTimed(final Feature feature, final TraceSpan parent) {
+		final long timeStart = System.currentTimeMillis();
+		final TraceSpan span = tracer.start("uninstallFeature", parent)
+				.attribute("feature", feature.getId());
 		try {
-			featuresService.removeRepository(repoUrl.toURI(), true);
-			return true;
+			featuresService.uninstallFeature(feature.getName(),
+					feature.getVersion());
 		} catch (Exception e) {
-			logger.error("Failed to remove repository: " + repoUrl, e);
-			return false;
+			metrics.failure(e);
+			span.error(e);
+			logger.error("Failed to uninstall feature: " + feature.getId(), e);
+			return;
+		} finally {
+			span.end();
 		}
+		featureUninstallTimeMap.put(feature.getId(),
+				System.currentTimeMillis() - timeStart);
 	}
 
-	/** url of repository file baked into the bundle */
-	List<URL> repoUrlList(Bundle bundle) {
+	/** number of features waiting for batch install */
+	public int getBatchPending() {
+		final FeatureBatch featureBatch = this.featureBatch;
+		return featureBatch == null ? 0 : featureBatch.size();
+	}
 
-		List<URL> repoUrlList = new ArrayList<URL>();
+	public long getBatchWindow() {
+		return batchWindow;
+	}
 
-		Enumeration<URL> entryEnum = bundle.findEntries(META_PATH, "*."
-				+ EXTENSION, false);
+	public BundleContext getBundleContext() {
+		return bundleContext;
+	}
 
-		if (entryEnum == null) {
-			return repoUrlList;
-		}
+	/** number of canHandle calls answered from cache */
+	public long getCanHandleCacheHits() {
+		final CanHandleCache cache = canHandleCache;
+		return cache == null ? 0 : cache.hitCount();
+	}
 
-		while (entryEnum.hasMoreElements()) {
-			repoUrlList.add(entryEnum.nextElement());
-		}
+	/** number of canHandle calls which had to inspect the file */
+	public long getCanHandleCacheMisses() {
+		final CanHandleCache cache = canHandleCache;
+		return cache == null ? 0 : cache.missCount();
+	}
 
-		return repoUrlList;
+	public int getCanHandleCacheSize() {
+		return canHandleCacheSize;
+	}
 
+	/** number of repos with events waiting for quiet window */
+	public int getCoalescePending() {
+		final RepoCoalescer coalescer = this.coalescer;
+		return coalescer == null ? 0 : coalescer.size();
 	}
 
-	public void setBundleContext(BundleContext bundleContext) {
-		this.bundleContext = bundleContext;
+	public long getCoalesceWindow() {
+		return coalesceWindow;
 	}
 
-	public void setFeaturesService(FeaturesService featuresService) {
-		this.featuresService = featuresService;
+	/** number of repo events absorbed by coalescing */
+	public long getCoalescedCount() {
+		final RepoCoalescer coalescer = this.coalescer;
+		return coalescer == null ? 0 : coalescer.coalescedCount();
+	}
+
+	/** maximum observed delay from event capture to processing, micros */
+	public long getEventLagMax() {
+		return TimeUnit.NANOSECONDS.toMicros(eventLagMax.get());
+	}
+
+	/** number of bundle events dropped because event ring was full */
+	public long getEventRingOverflowCount() {
+		final BundleEventRing eventRing = this.eventRing;
+		return eventRing == null ? 0 : eventRing.overflowCount();
+	}
+
+	/** number of captured bundle events waiting for consumer */
+	public int getEventRingPending() {
+		final BundleEventRing eventRing = this.eventRing;
+		return eventRing == null ? 0 : eventRing.size();
+	}
+
+	public int getEventRingSize() {
+		return eventRingSize;
+	}
+
+	/** number of repo operations being executed now */
+	public int getExecutorActiveCount() {
+		final ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	/** number of repo operations executed since init */
+	public long getExecutorCompletedCount() {
+		final ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getCompletedTaskCount();
+	}
+
+	/** number of repos with queued or running operations */
+	public int getExecutorLaneCount() {
+		final KeyedSerialExecutor lanes = this.lanes;
+		return lanes == null ? 0 : lanes.laneCount();
+	}
+
+	/** number of repo operations waiting behind operation on the same repo */
+	public int getExecutorLanePending() {
+		final KeyedSerialExecutor lanes = this.lanes;
+		return lanes == null ? 0 : lanes.pendingCount();
+	}
+
+	/** peak number of worker threads since init */
+	public int getExecutorLargestPoolSize() {
+		final ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getLargestPoolSize();
+	}
+
+	/** number of worker threads alive now */
+	public int getExecutorPoolSize() {
+		final ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getPoolSize();
+	}
+
+	/** number of repo operations queued or running, see queue size */
+	public int getExecutorQueueDepth() {
+		final KeyedSerialExecutor lanes = this.lanes;
+		return lanes == null ? 0 : lanes.taskCount();
+	}
+
+	public int getExecutorQueueSize() {
+		return executorQueueSize;
+	}
+
+	/** number of repo operations dropped: queue full, or deployer stopped */
+	public long getExecutorRejectedCount() {
+		final KeyedSerialExecutor lanes = this.lanes;
+		return lanes == null ? 0 : lanes.rejectedCount();
+	}
+
+	public String getExecutorRejection() {
+		return executorRejection;
+	}
+
+	public long getExecutorShutdownTimeout() {
+		return executorShutdownTimeout;
+	}
+
+	public int getExecutorThreads() {
+		return executorThreads;
+	}
+
+	/** last install time by feature id, millis */
+	public Map<String, Long> getFeatureInstallTimes() {
+		return new TreeMap<String, Long>(featureInstallTimeMap);
+	}
+
+	public int getFeatureThreads() {
+		return featureThreads;
+	}
+
+	public long getFeatureTimeout() {
+		return featureTimeout;
+	}
+
+	/** last uninstall time by feature id, millis */
+	public Map<String, Long> getFeatureUninstallTimes() {
+		return new TreeMap<String, Long>(featureUninstallTimeMap);
+	}
+
+	public FeaturesService getFeaturesService() {
+		return featuresService;
+	}
+
+	public DeployerMetricsMXBean getMetrics() {
+		return metrics;
+	}
+
+	/** number of repos changed by startup reconciliation */
+	public int getReconcileCount() {
+		return reconcileCount;
+	}
+
+	/** duration of startup reconciliation, millis, or -1 while running */
+	public long getReconcileTime() {
+		return reconcileTime;
+	}
+
+	/** number of bundle events answered from repo entry index */
+	public long getRepoEntryIndexHits() {
+		return repoEntryIndex.hitCount();
+	}
+
+	/** number of bundle events which had to search bundle entries */
+	public long getRepoEntryIndexMisses() {
+		return repoEntryIndex.missCount();
+	}
+
+	/** number of repositories known to the repo index */
+	public int getRepoIndexSize() {
+		final RepoIndex repoIndex = this.repoIndex;
+		return repoIndex == null ? 0 : repoIndex.size();
+	}
+
+	public long getRepoIndexVerifyPeriod() {
+		return repoIndexVerifyPeriod;
+	}
+
+	/** number of repo adds parked waiting for repo remove */
+	public int getRepoWaitCount() {
+		final RepoSignal repoSignal = this.repoSignal;
+		return repoSignal == null ? 0 : repoSignal.size();
+	}
+
+	/** total time repo adds spent parked for repo remove, millis */
+	public long getRepoWaitTime() {
+		final RepoSignal repoSignal = this.repoSignal;
+		return repoSignal == null ? 0 : repoSignal.waitTime();
+	}
+
+	public long getRepoWaitTimeout() {
+		return repoWaitTimeout;
+	}
+
+	public String getStateBackend() {
+		return stateBackend;
+	}
+
+	public long getStateSyncDelay() {
+		return stateSyncDelay;
+	}
+
+	public TraceExporter getTraceExporter() {
+		return traceExporter;
+	}
+
+	public String getTraceFile() {
+		return traceFile;
+	}
+
+	/** number of repositories rejected by validation */
+	public long getValidateRejectCount() {
+		return validateRejectCount.get();
+	}
+
+	boolean hasRepo(String repoName) {
+		final TraceSpan span = tracer.start("hasRepo");
+		final long timeStart = System.nanoTime();
+		try {
+			return hasRepoLookup(repoName);
+		} finally {
+			metrics.hasRepo(System.nanoTime() - timeStart);
+			span.end();
+		}
+	}
+
+	/**
+	 * Index answers from features service events, which may be late or
+	 * missed; negative answer is confirmed with features service.
+	 */
+	boolean hasRepoLookup(String repoName) {
+		final RepoIndex repoIndex = this.repoIndex;
+		if (repoIndex != null && repoIndex.hasName(repoName)) {
+			return true;
+		}
+		return featuresService.getRepository(repoName) != null;
+	}
+
+	/** component start */
+	public void init() throws Exception {
+		traceStart();
+		if (canHandleCacheSize > 0) {
+			canHandleCache = new CanHandleCache(canHandleCacheSize,
+					canHandleCacheDigest);
+		}
+		timer = Executors
+				.newSingleThreadScheduledExecutor(new DeployerThreadFactory(
+						"# repo deployer timer"));
+		repoSignal = new RepoSignal(timer);
+		repoRecordLoad();
+		repoIndexStart();
+		executorStart();
+		featurePoolStart();
+		if (coalesceWindow > 0) {
+			coalescer = new RepoCoalescer(timer, coalesceWindow,
+					new RepoCoalescer.Sink() {
+						public void repoChange(String repoName, URL removeUrl,
+								Bundle addBundle, URL addUrl) {
+							FeatureDeploymentListener.this.repoChange(
+									repoName, removeUrl, addBundle, addUrl);
+						}
+					});
+		}
+		if (batchWindow > 0) {
+			featureBatch = new FeatureBatch(timer, batchWindow, new Runnable() {
+				public void run() {
+					execute(BATCH_LANE, "# feature batch install",
+							new Runnable() {
+								public void run() {
+									featureBatchInstall();
+								}
+							});
+				}
+			});
+		}
+		eventStart();
+		bundleContext.addBundleListener(this);
+		reconcile();
+		try {
+			metrics.register();
+		} catch (Exception e) {
+			logger.warn("Failed to register deployer metrics", e);
+		}
+	}
+
+	/**
+	 * features of the added repository: the same set which features service
+	 * installs on repository add with install flag, regardless of install
+	 * attribute of the feature; fails the add when features service does not
+	 * know the repository it has just added
+	 */
+	List<Feature> installList(URI repoURI) throws Exception {
+		final Repository repo = repository(repoURI);
+		if (repo == null) {
+			throw new IllegalStateException("Missing repository: " + repoURI);
+		}
+		return new ArrayList<Feature>(Arrays.asList(repo.getFeatures()));
+	}
+
+	public boolean isCanHandleCacheDigest() {
+		return canHandleCacheDigest;
+	}
+
+	boolean isKnownFeaturesURI(String uri) {
+		if (uri == null) {
+			return true;
+		}
+		if (FeaturesNamespaces.URI_0_0_0.equalsIgnoreCase(uri)) {
+			return true;
+		}
+		if (FeaturesNamespaces.URI_1_0_0.equalsIgnoreCase(uri)) {
+			return true;
+		}
+		if (FeaturesNamespaces.URI_1_1_0.equalsIgnoreCase(uri)) {
+			return true;
+		}
+		if (FeaturesNamespaces.URI_1_2_0.equalsIgnoreCase(uri)) {
+			return true;
+		}
+		if (FeaturesNamespaces.URI_CURRENT.equalsIgnoreCase(uri)) {
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isReconcile() {
+		return reconcile;
+	}
+
+	/**
+	 * repo name is registered with features service under the url; negative
+	 * answer of the index is confirmed with features service
+	 */
+	boolean isRepoRegistered(String repoName, URL repoUrl) {
+		final URI repoURI = toURI(repoUrl);
+		if (repoURI == null) {
+			return false;
+		}
+		final RepoIndex repoIndex = this.repoIndex;
+		if (repoIndex != null && repoURI.equals(repoIndex.nameURI(repoName))) {
+			return true;
+		}
+		final Repository repo = featuresService.getRepository(repoName);
+		return repo != null && repoURI.equals(repo.getURI());
+	}
+
+	/** descriptor uri made by repo bundle transformer */
+	boolean isRepoURI(URI uri) {
+		final String path = uri.toString();
+		return path.contains(META_PATH) && path.endsWith("." + EXTENSION);
+	}
+
+	public boolean isValidate() {
+		return validate;
+	}
+
+	/**
+	 * Read name of the root element and stop there; avoids building a
+	 * document for multi-thousand line descriptors.
+	 */
+	protected QName parseRoot(File artifact) throws Exception {
+		if (xif == null) {
+			xif = XMLInputFactory.newInstance();
+			xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+			xif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+					false);
+		}
+		InputStream input = new FileInputStream(artifact);
+		try {
+			XMLStreamReader reader = xif.createXMLStreamReader(input);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						return reader.getName();
+					}
+				}
+				throw new XMLStreamException("Missing root element.");
+			} finally {
+				reader.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Diff repo bundles resolved before the listener started against
+	 * features service repositories, and apply only missing adds, stale
+	 * descriptor replacements and orphan removes, in parallel per repo.
+	 */
+	void reconcile() {
+		if (!reconcile) {
+			return;
+		}
+
+		final long timeStart = System.currentTimeMillis();
+		reconcileTime = -1;
+
+		/** live repo bundles */
+		final Map<String, Bundle> bundleMap = new HashMap<String, Bundle>();
+		final Map<String, URL> urlMap = new HashMap<String, URL>();
+		final Set<String> liveSet = new HashSet<String>();
+		for (final Bundle bundle : bundleContext.getBundles()) {
+			switch (bundle.getState()) {
+			case Bundle.RESOLVED:
+			case Bundle.STARTING:
+			case Bundle.ACTIVE:
+			case Bundle.STOPPING:
+				break;
+			case Bundle.INSTALLED:
+				/** not resolved yet, keep its repo */
+				if (!repoUrlListIndexed(bundle).isEmpty()) {
+					liveSet.add(bundle.getSymbolicName());
+				}
+				continue;
+			default:
+				continue;
+			}
+			final List<URL> repoUrlList = repoUrlListIndexed(bundle);
+			if (repoUrlList.size() != 1) {
+				continue;
+			}
+			bundleMap.put(bundle.getSymbolicName(), bundle);
+			urlMap.put(bundle.getSymbolicName(), repoUrlList.get(0));
+		}
+
+		/** repo descriptors registered by this deployer */
+		final Map<String, URL> presentMap = new HashMap<String, URL>();
+		final Set<URI> presentSet = new HashSet<URI>();
+		for (final Repository repo : featuresService.listRepositories()) {
+			final URI uri = repo.getURI();
+			if (!isRepoURI(uri) || repo.getName() == null) {
+				continue;
+			}
+			try {
+				presentMap.put(repo.getName(), uri.toURL());
+				presentSet.add(uri);
+			} catch (MalformedURLException e) {
+				logger.error("Invalid repository uri: " + uri, e);
+			}
+		}
+
+		final Map<String, Runnable> changeMap = new HashMap<String, Runnable>();
+
+		for (final Map.Entry<String, URL> entry : urlMap.entrySet()) {
+			final String repoName = entry.getKey();
+			final URL repoUrl = entry.getValue();
+			final URL presentUrl = presentMap.remove(repoName);
+			if (presentUrl != null && presentSet.contains(toURI(repoUrl))) {
+				continue;
+			}
+			final Bundle bundle = bundleMap.get(repoName);
+			changeMap.put(repoName, new Runnable() {
+				public void run() {
+					repoChange(repoName, presentUrl, bundle, repoUrl);
+				}
+			});
+		}
+
+		for (final Map.Entry<String, URL> entry : presentMap.entrySet()) {
+			final String repoName = entry.getKey();
+			if (liveSet.contains(repoName)) {
+				continue;
+			}
+			final URL presentUrl = entry.getValue();
+			changeMap.put(repoName, new Runnable() {
+				public void run() {
+					repoChange(repoName, presentUrl, null, null);
+				}
+			});
+		}
+
+		reconcileCount = changeMap.size();
+
+		if (changeMap.isEmpty()) {
+			reconcileTime = System.currentTimeMillis() - timeStart;
+			logger.info("Reconciled repos: 0 time: " + reconcileTime + " ms");
+			return;
+		}
+
+		/** lanes are ordered, marker runs after repo changes */
+		final AtomicInteger pending = new AtomicInteger(changeMap.size());
+		final Runnable marker = new Runnable() {
+			public void run() {
+				if (pending.decrementAndGet() == 0) {
+					reconcileTime = System.currentTimeMillis() - timeStart;
+					logger.info("Reconciled repos: " + reconcileCount
+							+ " time: " + reconcileTime + " ms");
+				}
+			}
+		};
+		for (final Map.Entry<String, Runnable> entry : changeMap.entrySet()) {
+			entry.getValue().run();
+			execute(entry.getKey(), "# repo reconcile " + entry.getKey(),
+					marker);
+		}
+	}
+
+	boolean repoAdd(URL repoUrl) {
+		final TraceSpan span = tracer.start("repoAdd").attribute("url",
+				repoUrl);
+		final long timeStart = System.nanoTime();
+		try {
+			return repoAddApply(repoUrl);
+		} finally {
+			metrics.repoAdd(System.nanoTime() - timeStart);
+			span.end();
+		}
+	}
+
+	boolean repoAddApply(URL repoUrl) {
+		try {
+			if (validate && !repoValidate(repoUrl.toURI())) {
+				return false;
+			}
+			final FeatureBatch featureBatch = this.featureBatch;
+			if (featureBatch == null && featurePool == null) {
+				featuresService.addRepository(repoUrl.toURI(), true);
+				return true;
+			}
+			final URI repoURI = repoUrl.toURI();
+			featuresService.addRepository(repoURI, false);
+			if (featureBatch == null) {
+				featureInstall(installList(repoURI));
+			} else {
+				/** defer install of repository features to the batch */
+				featureBatch.add(repoURI, installList(repoURI));
+			}
+			return true;
+		} catch (Exception e) {
+			metrics.failure(e);
+			tracer.current().error(e);
+			logger.error("Failed to add repository: " + repoUrl, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Add repo, unless previous repo with the same name is still present: then
+	 * park the add until the remove path signals completion.
+	 */
+	Runnable repoAddTask(final Bundle bundle, final String repoName,
+			final URL repoUrl) {
+		return new Runnable() {
+			public void run() {
+				if (bundle.getState() == Bundle.UNINSTALLED) {
+					logger.info("Repo bundle is gone, cancel add: " + repoName);
+					return;
+				}
+				if (!hasRepo(repoName)) {
+					if (repoAdd(repoUrl)) {
+						repoRecordPut(bundle, repoUrl, repoDigest(repoUrl));
+					}
+					return;
+				}
+				/** same content deployed again, after touch or restart */
+				if (repoRebindSame(bundle, repoName, repoUrl)) {
+					return;
+				}
+				logger.info("Waiting for repo remove: " + repoName);
+				repoSignal.park(repoName, this, repoWaitTimeout);
+			}
+		};
+	}
+
+	/**
+	 * Apply net repo transition; remove and add of the same repo become a
+	 * single replace operation.
+	 */
+	void repoChange(final String repoName, final URL removeUrl,
+			final Bundle addBundle, final URL addUrl) {
+		if (removeUrl != null && addUrl != null) {
+			execute(repoName, "# repo replace " + repoName,
+					repoReplaceTask(repoName, removeUrl, addBundle, addUrl));
+			return;
+		}
+		if (removeUrl != null) {
+			execute(repoName, "# repo remove " + repoName,
+					repoRemoveTask(repoName, removeUrl));
+		}
+		if (addUrl != null) {
+			execute(repoName, "# repo add " + repoName,
+					repoAddTask(addBundle, repoName, addUrl));
+		}
+	}
+
+	/** descriptor content digest, or null when not readable */
+	String repoDigest(URL repoUrl) {
+		try {
+			return DigestUtil.digest(repoUrl);
+		} catch (Exception e) {
+			logger.debug("Unable to digest repository: " + repoUrl, e);
+			return null;
+		}
+	}
+
+	void repoIndexStart() {
+		final RepoIndex repoIndex = new RepoIndex();
+		/** register first, to see changes made while index is built */
+		repoIndexRegistration = bundleContext.registerService(
+				FeaturesListener.class.getName(), repoIndex, null);
+		repoIndex.rebuild(featuresService.listRepositories());
+		if (repoIndexVerifyPeriod > 0) {
+			timer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						repoIndex.rebuild(featuresService.listRepositories());
+					} catch (Throwable e) {
+						logger.error("Repo index verification failed.", e);
+					}
+				}
+			}, repoIndexVerifyPeriod, repoIndexVerifyPeriod,
+					TimeUnit.MILLISECONDS);
+		}
+		this.repoIndex = repoIndex;
+	}
+
+	void repoIndexStop() {
+		repoIndex = null;
+		if (repoIndexRegistration != null) {
+			repoIndexRegistration.unregister();
+			repoIndexRegistration = null;
+		}
+	}
+
+	/**
+	 * Same descriptor content under new url: swap repository uri in features
+	 * service, without uninstall and install of repository features.
+	 */
+	boolean repoRebind(RepoRecord record, Bundle bundle, URL repoUrl) {
+		try {
+			final URI repoURI = repoUrl.toURI();
+			if (!repoURI.equals(record.uri)) {
+				featuresService.removeRepository(record.uri, false);
+				featuresService.addRepository(repoURI, false);
+			}
+			repoRecordPut(bundle, repoUrl, record.digest);
+			logger.info("Repo content is unchanged, skip redeploy: "
+					+ record.name);
+			return true;
+		} catch (Exception e) {
+			logger.error("Failed to rebind repository: " + repoUrl, e);
+			return false;
+		}
+	}
+
+	/** rebind when deployed repo has the same descriptor content */
+	boolean repoRebindSame(Bundle bundle, String repoName, URL repoUrl) {
+		final RepoRecord record = repoRecordMap.get(repoName);
+		if (record == null) {
+			return false;
+		}
+		if (!record.isSame(repoDigest(repoUrl))) {
+			return false;
+		}
+		return repoRebind(record, bundle, repoUrl);
+	}
+
+	/** load persisted records of deployed repos */
+	void repoRecordLoad() {
+		final RepoStore journal = new RepoJournalStore(
+				bundleContext.getDataFile(JOURNAL), timer, stateSyncDelay);
+		final RepoStore mapped = new RepoMappedStore(
+				bundleContext.getDataFile(INDEX), timer, stateSyncDelay);
+		final RepoStore store;
+		final RepoStore other;
+		if (STATE_MAPPED.equals(stateBackend)) {
+			store = mapped;
+			other = journal;
+		} else {
+			store = journal;
+			other = mapped;
+		}
+		try {
+			final boolean isNew = !store.exists();
+			repoRecordMap.putAll(store.load());
+			if (isNew) {
+				repoRecordMigrate(store, new RepoPropStore(
+						bundleContext.getDataFile(CFG)));
+				repoRecordMigrate(store, other);
+			}
+			repoStore = store;
+			logger.info("Loaded deployed repo records: "
+					+ repoRecordMap.size() + " backend: " + stateBackend);
+		} catch (Exception e) {
+			logger.error("Failed to load repo records: " + stateBackend, e);
+		}
+	}
+
+	/** copy records of legacy or previous backend store into new store */
+	void repoRecordMigrate(RepoStore store, RepoStore legacy)
+			throws IOException {
+		if (!legacy.exists()) {
+			return;
+		}
+		final Map<String, RepoRecord> legacyMap = legacy.load();
+		legacy.close();
+		for (final RepoRecord record : legacyMap.values()) {
+			store.put(record);
+		}
+		repoRecordMap.putAll(legacyMap);
+		final File file = legacy.file();
+		/** keep state which could not be migrated for the operator */
+		Set<String> unknownSet = Collections.emptySet();
+		if (legacy instanceof RepoPropStore) {
+			unknownSet = ((RepoPropStore) legacy).unknownKeys();
+		}
+		if (!unknownSet.isEmpty()) {
+			logger.warn("Keep state file with unknown entries: " + file + " "
+					+ unknownSet);
+		} else if (!file.renameTo(new File(file.getPath() + ".migrated"))) {
+			logger.warn("Failed to rename migrated state file: " + file);
+		}
+		logger.info("Migrated repo records: " + legacyMap.size() + " from: "
+				+ file);
+	}
+
+	void repoRecordPut(Bundle bundle, URL repoUrl, String digest) {
+		try {
+			final String repoName = bundle.getSymbolicName();
+			final String version = bundle.getVersion().toString();
+			final RepoRecord record = new RepoRecord(repoName, version,
+					repoUrl.toURI(), digest);
+			repoRecordMap.put(repoName, record);
+			final RepoStore store = repoStore;
+			if (store != null) {
+				store.put(record);
+			}
+		} catch (URISyntaxException e) {
+			logger.error("Invalid repository url: " + repoUrl, e);
+		} catch (IOException e) {
+			logger.error("Failed to save repo record: " + repoUrl, e);
+		}
+	}
+
+	void repoRecordRemove(String repoName) {
+		if (repoRecordMap.remove(repoName) == null) {
+			return;
+		}
+		final RepoStore store = repoStore;
+		try {
+			if (store != null) {
+				store.remove(repoName);
+			}
+		} catch (IOException e) {
+			logger.error("Failed to save repo record removal: " + repoName, e);
+		}
+	}
+
+	boolean repoRemove(URL repoUrl) {
+		final TraceSpan span = tracer.start("repoRemove").attribute("url",
+				repoUrl);
+		final long timeStart = System.nanoTime();
+		try {
+			return repoRemoveApply(repoUrl);
+		} finally {
+			metrics.repoRemove(System.nanoTime() - timeStart);
+			span.end();
+		}
+	}
+
+	boolean repoRemoveApply(URL repoUrl) {
+		try {
+			if (featurePool == null) {
+				featuresService.removeRepository(repoUrl.toURI(), true);
+				return true;
+			}
+			final URI repoURI = repoUrl.toURI();
+			featureUninstall(repoURI);
+			featuresService.removeRepository(repoURI, false);
+			return true;
+		} catch (Exception e) {
+			metrics.failure(e);
+			tracer.current().error(e);
+			logger.error("Failed to remove repository: " + repoUrl, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove repo and resume add waiting for the remove; remove of an url no
+	 * longer registered under the repo name, left behind by a rebind, is
+	 * stale and must not touch the live repo or its record.
+	 */
+	Runnable repoRemoveTask(final String repoName, final URL repoUrl) {
+		return new Runnable() {
+			public void run() {
+				if (!hasRepo(repoName)) {
+					logger.debug("Repo is not present, skip remove: "
+							+ repoName);
+				} else if (!isRepoRegistered(repoName, repoUrl)) {
+					logger.info("Repo has other url, skip stale remove: "
+							+ repoName + " " + repoUrl);
+				} else if (repoRemove(repoUrl)) {
+					repoRecordRemove(repoName);
+				}
+				/** wake up add waiting for this remove */
+				final Runnable parked = repoSignal.fire(repoName);
+				if (parked != null) {
+					execute(repoName, "# repo add " + repoName, parked);
+				}
+			}
+		};
+	}
+
+	/** replace repo, unless descriptor content did not change */
+	Runnable repoReplaceTask(final String repoName, final URL removeUrl,
+			final Bundle addBundle, final URL addUrl) {
+		return new Runnable() {
+			public void run() {
+				if (hasRepo(repoName)
+						&& addBundle.getState() != Bundle.UNINSTALLED
+						&& repoRebindSame(addBundle, repoName, addUrl)) {
+					return;
+				}
+				repoRemoveTask(repoName, removeUrl).run();
+				repoAddTask(addBundle, repoName, addUrl).run();
+			}
+		};
+	}
+
+	void repoStoreClose() {
+		final RepoStore store = repoStore;
+		if (store == null) {
+			return;
+		}
+		repoStore = null;
+		try {
+			store.close();
+		} catch (IOException e) {
+			logger.error("Failed to close repo store", e);
+		}
+	}
+
+	/**
+	 * url of repository file baked into the bundle; searches bundle jar only,
+	 * so it does not resolve installed bundle
+	 */
+	List<URL> repoUrlList(Bundle bundle) {
+
+		List<URL> repoUrlList = new ArrayList<URL>();
+
+		Enumeration<String> pathEnum;
+		try {
+			pathEnum = bundle.getEntryPaths(META_PATH);
+		} catch (IllegalStateException e) {
+			/** uninstalled */
+			return repoUrlList;
+		}
+
+		if (pathEnum == null) {
+			return repoUrlList;
+		}
+
+		while (pathEnum.hasMoreElements()) {
+			String path = pathEnum.nextElement();
+			if (path.endsWith("." + EXTENSION)) {
+				repoUrlList.add(bundle.getEntry(path));
+			}
+		}
+
+		return repoUrlList;
+
+	}
+
+	/** repository urls from entry index, searched when not known yet */
+	List<URL> repoUrlListIndexed(Bundle bundle) {
+		List<URL> repoUrlList = repoEntryIndex.get(bundle);
+		if (repoUrlList == null) {
+			repoUrlList = repoUrlList(bundle);
+			if (bundle.getState() != Bundle.UNINSTALLED) {
+				repoEntryIndex.put(bundle, repoUrlList);
+			}
+		}
+		return repoUrlList;
+	}
+
+	/** dry run validation of descriptor; rejects before any install */
+	boolean repoValidate(URI repoURI) {
+		final TraceSpan span = tracer.start("repoValidate");
+		try {
+			new RepoValidator(featuresService).validate(repoURI);
+			return true;
+		} catch (Exception e) {
+			metrics.failure(e);
+			span.error(e);
+			validateRejectCount.incrementAndGet();
+			logger.error("Rejected repository: " + repoURI, e);
+			return false;
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * repository registered under the uri: from the index, else from features
+	 * service, whose event may not have reached the index yet; or null
+	 */
+	Repository repository(URI repoURI) {
+		final RepoIndex repoIndex = this.repoIndex;
+		if (repoIndex != null) {
+			final Repository repo = repoIndex.repository(repoURI);
+			if (repo != null) {
+				return repo;
+			}
+		}
+		for (final Repository repo : featuresService.listRepositories()) {
+			if (repoURI.equals(repo.getURI())) {
+				return repo;
+			}
+		}
+		return null;
+	}
+
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	public void setBundleContext(BundleContext bundleContext) {
+		this.bundleContext = bundleContext;
+	}
+
+	public void setCanHandleCacheDigest(boolean canHandleCacheDigest) {
+		this.canHandleCacheDigest = canHandleCacheDigest;
+	}
+
+	public void setCanHandleCacheSize(int canHandleCacheSize) {
+		this.canHandleCacheSize = canHandleCacheSize;
+	}
+
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	public void setEventRingSize(int eventRingSize) {
+		this.eventRingSize = eventRingSize;
+	}
+
+	public void setExecutorQueueSize(int executorQueueSize) {
+		this.executorQueueSize = executorQueueSize;
+	}
+
+	public void setExecutorRejection(String executorRejection) {
+		this.executorRejection = executorRejection;
+	}
+
+	public void setExecutorShutdownTimeout(long executorShutdownTimeout) {
+		this.executorShutdownTimeout = executorShutdownTimeout;
+	}
+
+	public void setExecutorThreads(int executorThreads) {
+		this.executorThreads = executorThreads;
+	}
+
+	public void setFeatureThreads(int featureThreads) {
+		this.featureThreads = featureThreads;
+	}
+
+	public void setFeatureTimeout(long featureTimeout) {
+		this.featureTimeout = featureTimeout;
+	}
+
+	public void setFeaturesService(FeaturesService featuresService) {
+		this.featuresService = featuresService;
+	}
+
+	public void setReconcile(boolean reconcile) {
+		this.reconcile = reconcile;
+	}
+
+	public void setRepoIndexVerifyPeriod(long repoIndexVerifyPeriod) {
+		this.repoIndexVerifyPeriod = repoIndexVerifyPeriod;
+	}
+
+	public void setRepoWaitTimeout(long repoWaitTimeout) {
+		this.repoWaitTimeout = repoWaitTimeout;
+	}
+
+	public void setStateBackend(String stateBackend) {
+		this.stateBackend = stateBackend;
+	}
+
+	public void setStateSyncDelay(long stateSyncDelay) {
+		this.stateSyncDelay = stateSyncDelay;
+	}
+
+	/** takes effect on init; exporter is not closed by destroy */
+	public void setTraceExporter(TraceExporter traceExporter) {
+		this.traceExporter = traceExporter;
+	}
+
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	public void setValidate(boolean validate) {
+		this.validate = validate;
+	}
+
+	URI toURI(URL url) {
+		try {
+			return url.toURI();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/** attach span exporter: supplied one, else json trace file if set */
+	void traceStart() {
+		TraceExporter exporter = traceExporter;
+		if (exporter == null && traceFile.length() > 0) {
+			File file = new File(traceFile);
+			if (!file.isAbsolute()) {
+				file = bundleContext.getDataFile(traceFile);
+			}
+			try {
+				exporter = traceFileExporter = new JsonFileTraceExporter(file);
+				logger.info("Tracing deploy operations to: " + file);
+			} catch (Exception e) {
+				logger.error("Failed to open trace file: " + file, e);
+			}
+		}
+		tracer.setExporter(exporter);
+	}
+
+	void traceStop() {
+		tracer.setExporter(null);
+		final TraceExporter exporter = traceFileExporter;
+		if (exporter != null) {
+			traceFileExporter = null;
+			exporter.close();
+		}
 	}
 
 	/**
 	 * 
 	 */
 	public URL transform(URL artifact) {
+		final TraceSpan span = tracer.start("transform").attribute("url",
+				artifact);
 		try {
 			return new URL(PROTOCOL, null, artifact.toString());
 		} catch (Exception e) {
+			span.error(e);
 			logger.error("Unable to build feature bundle", e);
 			return null;
+		} finally {
+			span.end();
 		}
 	}
 
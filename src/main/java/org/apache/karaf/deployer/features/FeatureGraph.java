@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dependency structure of a set of features, resolved against features
+ * service; one instance per operation, resolved dependencies are cached.
+ */
+class FeatureGraph {
+
+	/** resolved dependency by lookup key, null value when unknown */
+	private final Map<String, Feature> dependencyMap = new HashMap<String, Feature>();
+
+	private final FeaturesService featuresService;
+
+	private final Logger logger = LoggerFactory.getLogger(FeatureGraph.class);
+
+	/** union find forest of feature ids and bundle locations */
+	private final Map<String, String> parentMap = new HashMap<String, String>();
+
+	FeatureGraph(final FeaturesService featuresService) {
+		this.featuresService = featuresService;
+	}
+
+	/** dependency lookup key */
+	static String key(final String name, final String version) {
+		return name + "/" + version;
+	}
+
+	/** transitive dependency closure, including the feature itself */
+	Set<Feature> closure(final Feature feature) {
+		final Set<Feature> closure = new LinkedHashSet<Feature>();
+		closure(feature, closure);
+		return closure;
+	}
+
+	void closure(final Feature feature, final Set<Feature> closure) {
+		if (!closure.add(feature)) {
+			return;
+		}
+		for (final Feature dependency : dependencies(feature)) {
+			closure(dependency, closure);
+		}
+	}
+
+	/** direct dependencies known to features service */
+	List<Feature> dependencies(final Feature feature) {
+		final List<Feature> list = new ArrayList<Feature>();
+		for (final Dependency dependency : feature.getDependencies()) {
+			final Feature resolved = resolve(dependency);
+			if (resolved != null) {
+				list.add(resolved);
+			}
+		}
+		return list;
+	}
+
+	String find(final String node) {
+		String root = node;
+		while (true) {
+			final String parent = parentMap.get(root);
+			if (parent == null || parent.equals(root)) {
+				break;
+			}
+			root = parent;
+		}
+		/** path compression */
+		String next = node;
+		while (!next.equals(root)) {
+			final String parent = parentMap.put(next, root);
+			next = parent == null ? root : parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Partition features into groups which can be installed concurrently:
+	 * features sharing a dependency or a bundle end up in the same group.
+	 * Group order and order inside group follow the input order.
+	 */
+	List<List<Feature>> groups(final Collection<Feature> features) {
+		for (final Feature feature : features) {
+			final String node = "feature:" + feature.getId();
+			for (final Feature member : closure(feature)) {
+				union(node, "feature:" + member.getId());
+				for (final BundleInfo bundle : member.getBundles()) {
+					union(node, "bundle:" + bundle.getLocation());
+				}
+			}
+		}
+		final Map<String, List<Feature>> groupMap = new LinkedHashMap<String, List<Feature>>();
+		for (final Feature feature : features) {
+			final String root = find("feature:" + feature.getId());
+			List<Feature> group = groupMap.get(root);
+			if (group == null) {
+				group = new ArrayList<Feature>();
+				groupMap.put(root, group);
+			}
+			group.add(feature);
+		}
+		return new ArrayList<List<Feature>>(groupMap.values());
+	}
+
+	Feature resolve(final Dependency dependency) {
+		final String key = key(dependency.getName(), dependency.getVersion());
+		if (dependencyMap.containsKey(key)) {
+			return dependencyMap.get(key);
+		}
+		Feature feature = null;
+		try {
+			feature = featuresService.getFeature(dependency.getName(),
+					dependency.getVersion());
+		} catch (Exception e) {
+			logger.debug("Unresolved dependency: " + key, e);
+		}
+		dependencyMap.put(key, feature);
+		return feature;
+	}
+
+	void union(final String one, final String two) {
+		final String rootOne = find(one);
+		final String rootTwo = find(two);
+		if (!rootOne.equals(rootTwo)) {
+			parentMap.put(rootOne, rootTwo);
+		}
+	}
+
+	/**
+	 * Uninstall waves in reverse dependency order: each wave holds features
+	 * no remaining feature depends on, so features of one wave can be
+	 * removed concurrently. Cycles end up together in the last wave.
+	 */
+	List<List<Feature>> waves(final Collection<Feature> features) {
+		final List<List<Feature>> waveList = new ArrayList<List<Feature>>();
+		final List<Feature> remaining = new ArrayList<Feature>(features);
+		while (!remaining.isEmpty()) {
+			final Set<String> neededSet = new HashSet<String>();
+			for (final Feature feature : remaining) {
+				for (final Feature member : closure(feature)) {
+					if (member != feature) {
+						neededSet.add(member.getId());
+					}
+				}
+			}
+			List<Feature> wave = new ArrayList<Feature>();
+			for (final Feature feature : remaining) {
+				if (!neededSet.contains(feature.getId())) {
+					wave.add(feature);
+				}
+			}
+			if (wave.isEmpty()) {
+				wave = new ArrayList<Feature>(remaining);
+			}
+			remaining.removeAll(wave);
+			waveList.add(wave);
+		}
+		return waveList;
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes spans as complete events of the Chrome trace event format, one per
+ * line, so the file opens directly in chrome://tracing or Perfetto as a
+ * flame style timeline. Trailing bracket is optional in that format, so the file
+ * stays valid while appended and across restarts.
+ */
+class JsonFileTraceExporter implements TraceExporter {
+
+	private final File file;
+
+	private final Logger logger = LoggerFactory
+			.getLogger(JsonFileTraceExporter.class);
+
+	/** guarded by this */
+	private Writer writer;
+
+	JsonFileTraceExporter(final File file) throws IOException {
+		this.file = file;
+		final boolean isNew = !file.exists() || file.length() == 0;
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), "UTF-8"));
+		if (isNew) {
+			writer.write("[\n");
+			writer.flush();
+		}
+	}
+
+	static void quote(final StringBuilder text, final String value) {
+		text.append('"');
+		for (int index = 0; index < value.length(); index++) {
+			final char c = value.charAt(index);
+			switch (c) {
+			case '"':
+				text.append("\\\"");
+				break;
+			case '\\':
+				text.append("\\\\");
+				break;
+			case '\n':
+				text.append("\\n");
+				break;
+			case '\r':
+				text.append("\\r");
+				break;
+			case '\t':
+				text.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					text.append(String.format("\\u%04x", (int) c));
+				} else {
+					text.append(c);
+				}
+			}
+		}
+		text.append('"');
+	}
+
+	public synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			logger.error("Failed to close trace file: " + file, e);
+		}
+		writer = null;
+	}
+
+	public void export(final TraceSpan span) {
+		final String line = format(span);
+		synchronized (this) {
+			if (writer == null) {
+				return;
+			}
+			try {
+				writer.write(line);
+				writer.flush();
+			} catch (IOException e) {
+				logger.error("Failed to write trace file: " + file, e);
+			}
+		}
+	}
+
+	/** complete event: timestamps in micros, trace ids in args */
+	String format(final TraceSpan span) {
+		final StringBuilder text = new StringBuilder(256);
+		text.append("{\"name\":");
+		quote(text, span.getName());
+		text.append(",\"cat\":\"deploy\",\"ph\":\"X\",\"ts\":");
+		text.append(span.getStart());
+		text.append(",\"dur\":").append(span.getDuration() / 1000);
+		text.append(",\"pid\":1,\"tid\":").append(span.getThreadId());
+		text.append(",\"args\":{\"thread\":");
+		quote(text, span.getThread());
+		text.append(",\"trace\":").append(span.getTraceId());
+		text.append(",\"span\":").append(span.getSpanId());
+		text.append(",\"parent\":").append(span.getParentId());
+		if (span.getError() != null) {
+			text.append(",\"error\":");
+			quote(text, span.getError());
+		}
+		for (final Map.Entry<String, String> entry : span.getAttributes()
+				.entrySet()) {
+			text.append(',');
+			quote(text, entry.getKey());
+			text.append(':');
+			quote(text, entry.getValue());
+		}
+		text.append("}},\n");
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serial lanes of tasks on top of a shared executor.
+ * <p>
+ * Tasks with the same key run one at a time in submission order; tasks with
+ * different keys run in parallel. Lane occupies an executor slot only while
+ * it has a task to run, and gives the slot back after each task, so busy
+ * lanes do not starve the others.
+ * <p>
+ * Number of operations held in all lanes, queued or running, is bounded.
+ * When the bound is reached a new task is either dropped, or the submitting
+ * thread waits for room; running it on the submitting thread would break
+ * the order of its lane.
+ */
+class KeyedSerialExecutor {
+
+	class Lane implements Runnable {
+
+		final String key;
+
+		/** guarded by executor instance */
+		final Queue<Runnable> queue = new LinkedList<Runnable>();
+
+		Lane(final String key) {
+			this.key = key;
+		}
+
+		public void run() {
+			final Runnable task;
+			synchronized (KeyedSerialExecutor.this) {
+				task = queue.peek();
+			}
+			try {
+				task.run();
+			} finally {
+				final boolean hasNext;
+				synchronized (KeyedSerialExecutor.this) {
+					queue.remove();
+					taskCount--;
+					KeyedSerialExecutor.this.notifyAll();
+					hasNext = !queue.isEmpty();
+					if (!hasNext) {
+						laneMap.remove(key);
+					}
+				}
+				if (hasNext) {
+					submit(this);
+				}
+			}
+		}
+
+	}
+
+	private final Executor executor;
+
+	/** no more tasks accepted; guarded by this */
+	private boolean isStopped;
+
+	/** submitting thread waits for room instead of dropping the task */
+	private final boolean isWait;
+
+	/** guarded by this */
+	private final Map<String, Lane> laneMap = new HashMap<String, Lane>();
+
+	private final Logger logger = LoggerFactory
+			.getLogger(KeyedSerialExecutor.class);
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/** number of tasks in all lanes, queued or running; guarded by this */
+	private int taskCount;
+
+	/** maximum number of tasks in all lanes */
+	private final int taskLimit;
+
+	/** maximum wait of submitting thread for room, millis */
+	private final long waitTimeout;
+
+	KeyedSerialExecutor(final Executor executor, final int taskLimit,
+			final boolean isWait, final long waitTimeout) {
+		this.executor = executor;
+		this.taskLimit = taskLimit;
+		this.isWait = isWait;
+		this.waitTimeout = waitTimeout;
+	}
+
+	/** wait until all lanes are drained; false on timeout */
+	synchronized boolean awaitIdle(final long timeout)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (!laneMap.isEmpty()) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/** queue task behind earlier tasks with the same key; false if dropped */
+	boolean execute(final String key, final Runnable task) {
+		final Lane lane;
+		synchronized (this) {
+			if (!hasRoom()) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+			taskCount++;
+			final Lane present = laneMap.get(key);
+			if (present != null) {
+				present.queue.add(task);
+				return true;
+			}
+			lane = new Lane(key);
+			lane.queue.add(task);
+			laneMap.put(key, lane);
+		}
+		return submit(lane);
+	}
+
+	/** room for one more task, waiting for it if configured; guarded by this */
+	private boolean hasRoom() {
+		if (isStopped) {
+			return false;
+		}
+		if (taskCount < taskLimit) {
+			return true;
+		}
+		if (!isWait) {
+			return false;
+		}
+		final long deadline = System.currentTimeMillis() + waitTimeout;
+		try {
+			while (taskCount >= taskLimit && !isStopped) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !isStopped;
+	}
+
+	/** number of keys with queued or running tasks */
+	synchronized int laneCount() {
+		return laneMap.size();
+	}
+
+	/** number of tasks waiting behind running tasks of the same key */
+	synchronized int pendingCount() {
+		int count = 0;
+		for (final Lane lane : laneMap.values()) {
+			count += lane.queue.size() - 1;
+		}
+		return count;
+	}
+
+	long rejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/** refuse further tasks and release waiting submitters */
+	synchronized void stop() {
+		isStopped = true;
+		notifyAll();
+	}
+
+	private boolean submit(final Lane lane) {
+		try {
+			executor.execute(lane);
+			return true;
+		} catch (RejectedExecutionException e) {
+			final int count;
+			synchronized (this) {
+				count = lane.queue.size();
+				lane.queue.clear();
+				taskCount -= count;
+				laneMap.remove(lane.key);
+				notifyAll();
+			}
+			rejectedCount.addAndGet(count);
+			logger.error("Executor rejected lane: " + lane.key
+					+ ", dropped tasks: " + count, e);
+			return false;
+		}
+	}
+
+	/** number of tasks in all lanes, queued or running */
+	synchronized int taskCount() {
+		return taskCount;
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets.
+ * <p>
+ * Recording is a few atomic increments, no allocation; percentiles are
+ * reported as upper bound of the bucket, so within a factor of two.
+ */
+class LatencyHistogram {
+
+	/** bucket N counts latencies below 2^N micros */
+	static final int BUCKETS = 40;
+
+	private final AtomicLongArray bucketArray = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	static int bucket(final long micros) {
+		final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+
+	void clear() {
+		for (int index = 0; index < BUCKETS; index++) {
+			bucketArray.set(index, 0);
+		}
+		count.set(0);
+		max.set(0);
+		total.set(0);
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	/** maximum latency, micros */
+	long max() {
+		return max.get();
+	}
+
+	/** mean latency, micros */
+	long mean() {
+		final long count = this.count.get();
+		return count == 0 ? 0 : total.get() / count;
+	}
+
+	/** latency below which given fraction of records falls, micros */
+	long percentile(final double fraction) {
+		final long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			seen += bucketArray.get(index);
+			if (seen >= rank) {
+				return Math.min(1L << index, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	void record(final long nanos) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		bucketArray.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		total.addAndGet(micros);
+		while (true) {
+			final long current = max.get();
+			if (micros <= current || max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Debounce of repo bundle events, keyed by repo name.
+ * <p>
+ * Events of a repo are collected until the repo stays quiet for a window,
+ * then only the net transition is handed over: removes of the uninstalled
+ * descriptors, in order, then add of the last resolved descriptor which is
+ * still installed.
+ * Flapping repo is flushed anyway once the maximum delay is reached.
+ */
+class RepoCoalescer {
+
+	class Pending implements Runnable {
+
+		/** resolved bundles still installed, last resolved at the end */
+		final Map<Bundle, URL> addMap = new LinkedHashMap<Bundle, URL>();
+		int eventCount;
+		ScheduledFuture<?> flush;
+		final String repoName;
+		/** uninstalled descriptors, first uninstalled at the start */
+		final List<URL> removeList = new ArrayList<URL>();
+		final long since = System.currentTimeMillis();
+
+		Pending(final String repoName) {
+			this.repoName = repoName;
+		}
+
+		/** quiet window expired */
+		public void run() {
+			if (take(this)) {
+				apply(this);
+			}
+		}
+
+	}
+
+	/** receiver of net repo transitions */
+	interface Sink {
+
+		/** either url can be null, not both */
+		void repoChange(String repoName, URL removeUrl, Bundle addBundle,
+				URL addUrl);
+
+	}
+
+	/** upper bound of delay for flapping repo, in quiet windows */
+	static final int MAX_WINDOWS = 10;
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/** guarded by this */
+	private final Map<String, Pending> pendingMap = new HashMap<String, Pending>();
+
+	private final Sink sink;
+
+	private final ScheduledExecutorService timer;
+
+	private final long window;
+
+	RepoCoalescer(final ScheduledExecutorService timer, final long window,
+			final Sink sink) {
+		this.timer = timer;
+		this.window = window;
+		this.sink = sink;
+	}
+
+	/** repo bundle resolved */
+	synchronized void added(final String repoName, final Bundle bundle,
+			final URL repoUrl) {
+		final Pending pending = pending(repoName);
+		pending.addMap.remove(bundle);
+		pending.addMap.put(bundle, repoUrl);
+		schedule(pending);
+	}
+
+	private void apply(final Pending pending) {
+		if (pending.eventCount > 1) {
+			coalescedCount.addAndGet(pending.eventCount - 1);
+		}
+		Bundle addBundle = null;
+		URL addUrl = null;
+		for (final Map.Entry<Bundle, URL> entry : pending.addMap.entrySet()) {
+			addBundle = entry.getKey();
+			addUrl = entry.getValue();
+		}
+		/** only one of the removed urls is registered, others are stale */
+		final int removeSize = pending.removeList.size();
+		for (int index = 0; index < removeSize - 1; index++) {
+			sink.repoChange(pending.repoName, pending.removeList.get(index),
+					null, null);
+		}
+		final URL removeUrl = removeSize == 0 ? null : pending.removeList
+				.get(removeSize - 1);
+		if (removeUrl != null || addUrl != null) {
+			sink.repoChange(pending.repoName, removeUrl, addBundle, addUrl);
+		}
+	}
+
+	/** number of events absorbed by coalescing */
+	long coalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/** hand over all pending transitions now */
+	void flushAll() {
+		final List<Pending> pendingList;
+		synchronized (this) {
+			pendingList = new ArrayList<Pending>(pendingMap.values());
+			for (final Pending pending : pendingList) {
+				pending.flush.cancel(false);
+			}
+			pendingMap.clear();
+		}
+		for (final Pending pending : pendingList) {
+			apply(pending);
+		}
+	}
+
+	private Pending pending(final String repoName) {
+		Pending pending = pendingMap.get(repoName);
+		if (pending == null) {
+			pending = new Pending(repoName);
+			pendingMap.put(repoName, pending);
+		}
+		pending.eventCount++;
+		return pending;
+	}
+
+	/** repo bundle uninstalled */
+	synchronized void removed(final String repoName, final Bundle bundle,
+			final URL repoUrl) {
+		final Pending pending = pending(repoName);
+		pending.removeList.add(repoUrl);
+		/** add of this bundle did not happen yet, and needs no undo */
+		pending.addMap.remove(bundle);
+		schedule(pending);
+	}
+
+	/** restart quiet window, within maximum delay */
+	private void schedule(final Pending pending) {
+		if (pending.flush != null) {
+			pending.flush.cancel(false);
+		}
+		final long elapsed = System.currentTimeMillis() - pending.since;
+		final long delay = Math.max(0,
+				Math.min(window, MAX_WINDOWS * window - elapsed));
+		pending.flush = timer.schedule(pending, delay, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized int size() {
+		return pendingMap.size();
+	}
+
+	private synchronized boolean take(final Pending pending) {
+		if (pendingMap.get(pending.repoName) == pending) {
+			pendingMap.remove(pending.repoName);
+			return true;
+		}
+		return false;
+	}
+
+}
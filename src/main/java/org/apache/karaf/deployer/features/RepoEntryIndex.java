@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Repo descriptor entries of framework bundles, keyed by bundle id and
+ * validated by bundle last modified time.
+ * <p>
+ * Most bundles carry no repo entry; their empty entry list is remembered
+ * too, so their events cost a map lookup instead of a bundle entry search.
+ */
+class RepoEntryIndex {
+
+	static class Entries {
+
+		final long modified;
+		final List<URL> urlList;
+
+		Entries(final long modified, final List<URL> urlList) {
+			this.modified = modified;
+			this.urlList = urlList;
+		}
+
+	}
+
+	private final Map<Long, Entries> entriesMap = new ConcurrentHashMap<Long, Entries>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	void clear() {
+		entriesMap.clear();
+	}
+
+	/**
+	 * Entries of the bundle, or null when unknown or bundle was modified.
+	 * Uninstalled bundle entries are served regardless of time stamp, since
+	 * the bundle can not be searched any more.
+	 */
+	List<URL> get(final Bundle bundle) {
+		final Entries entries = entriesMap.get(bundle.getBundleId());
+		if (entries != null
+				&& (bundle.getState() == Bundle.UNINSTALLED || entries.modified == bundle
+						.getLastModified())) {
+			hitCount.incrementAndGet();
+			return entries.urlList;
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	long hitCount() {
+		return hitCount.get();
+	}
+
+	long missCount() {
+		return missCount.get();
+	}
+
+	void put(final Bundle bundle, final List<URL> urlList) {
+		entriesMap.put(bundle.getBundleId(), new Entries(
+				bundle.getLastModified(),
+				Collections.unmodifiableList(urlList)));
+	}
+
+	void remove(final Bundle bundle) {
+		entriesMap.remove(bundle.getBundleId());
+	}
+
+	int size() {
+		return entriesMap.size();
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.karaf.features.FeatureEvent;
+import org.apache.karaf.features.FeaturesListener;
+import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.RepositoryEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Name and uri index of repositories known to the features service.
+ * <p>
+ * Index follows features service repository events, and is re-verified
+ * against full repository list from time to time to heal missed events.
+ */
+class RepoIndex implements FeaturesListener {
+
+	private final Logger logger = LoggerFactory.getLogger(RepoIndex.class);
+
+	/** repo name to repo uri */
+	private final Map<String, URI> nameMap = new ConcurrentHashMap<String, URI>();
+
+	/** repo uri to repository */
+	private final Map<URI, Repository> repoMap = new ConcurrentHashMap<URI, Repository>();
+
+	/** repo uri to repo name, empty for anonymous repo */
+	private final Map<URI, String> uriMap = new ConcurrentHashMap<URI, String>();
+
+	public void featureEvent(final FeatureEvent event) {
+	}
+
+	boolean hasName(final String repoName) {
+		return nameMap.containsKey(repoName);
+	}
+
+	boolean hasURI(final URI repoURI) {
+		return uriMap.containsKey(repoURI);
+	}
+
+	private String nameOf(final Repository repo) {
+		final String name = repo.getName();
+		return name == null ? "" : name;
+	}
+
+	/** repo uri registered under the name, or null */
+	URI nameURI(final String repoName) {
+		return nameMap.get(repoName);
+	}
+
+	private void put(final Repository repo) {
+		final URI uri = repo.getURI();
+		final String name = nameOf(repo);
+		repoMap.put(uri, repo);
+		final String previous = uriMap.put(uri, name);
+		if (previous != null && !previous.equals(name)) {
+			unname(uri, previous);
+		}
+		if (name.length() > 0) {
+			nameMap.put(name, uri);
+		}
+	}
+
+	/**
+	 * Replace index content with actual repository list; returns number of
+	 * entries which were out of sync.
+	 */
+	synchronized int rebuild(final Repository[] repoList) {
+		final Map<URI, Repository> actual = new HashMap<URI, Repository>();
+		for (final Repository repo : repoList) {
+			actual.put(repo.getURI(), repo);
+		}
+		int drift = 0;
+		for (final URI uri : uriMap.keySet()) {
+			if (!actual.containsKey(uri)) {
+				drift++;
+				remove(uri);
+			}
+		}
+		for (final Repository repo : actual.values()) {
+			if (!nameOf(repo).equals(uriMap.get(repo.getURI()))) {
+				drift++;
+			}
+			/** refresh repository instance in any case */
+			put(repo);
+		}
+		if (drift > 0) {
+			logger.warn("Repo index was out of sync, entries: " + drift);
+		}
+		return drift;
+	}
+
+	private void remove(final URI uri) {
+		repoMap.remove(uri);
+		final String name = uriMap.remove(uri);
+		if (name != null) {
+			unname(uri, name);
+		}
+	}
+
+	/** repository registered under the uri, or null */
+	Repository repository(final URI repoURI) {
+		return repoMap.get(repoURI);
+	}
+
+	public synchronized void repositoryEvent(final RepositoryEvent event) {
+		final Repository repo = event.getRepository();
+		switch (event.getType()) {
+		case RepositoryAdded:
+			put(repo);
+			break;
+		case RepositoryRemoved:
+			remove(repo.getURI());
+			break;
+		}
+	}
+
+	int size() {
+		return uriMap.size();
+	}
+
+	/** drop name of the uri, fall back to other repo with the same name */
+	private void unname(final URI uri, final String name) {
+		if (!uri.equals(nameMap.get(name))) {
+			return;
+		}
+		nameMap.remove(name);
+		for (final Map.Entry<URI, String> entry : uriMap.entrySet()) {
+			if (name.equals(entry.getValue())) {
+				nameMap.put(name, entry.getKey());
+				return;
+			}
+		}
+	}
+
+}
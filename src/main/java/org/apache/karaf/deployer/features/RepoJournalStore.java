@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal of repo put and remove records.
+ * <p>
+ * Each update is one small sequential write; fsync of updates is batched
+ * over a short delay. Load replays the journal and cuts off a torn tail left
+ * by a crash; record types of a newer store are skipped. Journal is compacted
+ * into live records when obsolete records dominate.
+ * <p>
+ * Frame: payload length, payload, payload crc32.
+ */
+class RepoJournalStore implements RepoStore {
+
+	/** minimum number of records before compaction is considered */
+	static final int COMPACT_MIN = 1000;
+
+	/** journal header */
+	static final int MAGIC = 0x52504A31;
+
+	/** sanity limit of record payload */
+	static final int PAYLOAD_MAX = 64 * 1024;
+
+	static final byte RECORD_PUT = 1;
+
+	static final byte RECORD_REMOVE = 2;
+
+	private FileChannel channel;
+
+	private final File file;
+
+	private final Logger logger = LoggerFactory
+			.getLogger(RepoJournalStore.class);
+
+	/** number of records in journal, live and obsolete */
+	private int recordCount;
+
+	/** live records; guarded by this */
+	private final Map<String, RepoRecord> recordMap = new HashMap<String, RepoRecord>();
+
+	/** delay of batched fsync, millis, zero to fsync each update */
+	private final long syncDelay;
+
+	/** pending batched fsync; guarded by this */
+	private ScheduledFuture<?> syncFuture;
+
+	private final ScheduledExecutorService timer;
+
+	RepoJournalStore(final File file, final ScheduledExecutorService timer,
+			final long syncDelay) {
+		this.file = file;
+		this.timer = timer;
+		this.syncDelay = syncDelay;
+	}
+
+	static String readString(final DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+
+	static void writeString(final DataOutputStream output, final String text)
+			throws IOException {
+		output.writeBoolean(text != null);
+		if (text != null) {
+			output.writeUTF(text);
+		}
+	}
+
+	/** append one framed record; guarded by this */
+	void append(final byte[] payload) throws IOException {
+		channel.write(frame(payload));
+		recordCount++;
+		if (recordCount >= COMPACT_MIN && recordCount > 2 * recordMap.size()) {
+			compact();
+		} else {
+			syncLater();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		sync();
+		channel.close();
+		channel = null;
+	}
+
+	/**
+	 * Write live records into new journal and swap it in; rename keeps
+	 * either old or new journal complete on crash.
+	 */
+	void compact() throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final RandomAccessFile access = new RandomAccessFile(temp, "rw");
+		try {
+			final FileChannel target = access.getChannel();
+			target.truncate(0);
+			target.write(header());
+			for (final RepoRecord record : recordMap.values()) {
+				target.write(frame(encodePut(record)));
+			}
+			target.force(false);
+		} finally {
+			access.close();
+		}
+		channel.close();
+		channel = null;
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to replace journal: " + file);
+			}
+		}
+		recordCount = recordMap.size();
+		open();
+		channel.position(channel.size());
+		logger.info("Compacted repo journal, records: " + recordCount);
+	}
+
+	byte[] encodePut(final RepoRecord record) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		final DataOutputStream output = new DataOutputStream(buffer);
+		output.writeByte(RECORD_PUT);
+		output.writeUTF(record.name);
+		writeString(output, record.version);
+		output.writeUTF(record.uri.toString());
+		writeString(output, record.digest);
+		return buffer.toByteArray();
+	}
+
+	byte[] encodeRemove(final String name) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		final DataOutputStream output = new DataOutputStream(buffer);
+		output.writeByte(RECORD_REMOVE);
+		output.writeUTF(name);
+		return buffer.toByteArray();
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	public File file() {
+		return file;
+	}
+
+	ByteBuffer frame(final byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(payload);
+		final ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	ByteBuffer header() {
+		final ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(MAGIC);
+		buffer.flip();
+		return buffer;
+	}
+
+	public synchronized Map<String, RepoRecord> load() throws IOException {
+		recordMap.clear();
+		recordCount = 0;
+		final long validSize = replay();
+		open();
+		if (channel.size() > validSize) {
+			logger.warn("Truncating torn repo journal tail: " + file + " at "
+					+ validSize + " of " + channel.size());
+			channel.truncate(validSize);
+		}
+		/** new journal, or torn header */
+		if (channel.size() == 0) {
+			channel.write(header());
+		}
+		channel.position(channel.size());
+		if (recordCount >= COMPACT_MIN && recordCount > 2 * recordMap.size()) {
+			compact();
+		}
+		return new HashMap<String, RepoRecord>(recordMap);
+	}
+
+	void open() throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	public synchronized void put(final RepoRecord record) throws IOException {
+		recordMap.put(record.name, record);
+		append(encodePut(record));
+	}
+
+	public synchronized void remove(final String name) throws IOException {
+		if (recordMap.remove(name) != null) {
+			append(encodeRemove(name));
+		}
+	}
+
+	/** apply journal records; returns size of valid journal prefix */
+	long replay() throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException("Not a repo journal: " + file);
+			}
+			long validSize = 4;
+			final CRC32 crc = new CRC32();
+			while (true) {
+				final int length;
+				final byte[] payload;
+				try {
+					length = input.readInt();
+					if (length <= 0 || length > PAYLOAD_MAX) {
+						return validSize;
+					}
+					payload = new byte[length];
+					input.readFully(payload);
+					crc.reset();
+					crc.update(payload);
+					if (input.readInt() != (int) crc.getValue()) {
+						return validSize;
+					}
+					if (replay(payload)) {
+						recordCount++;
+					} else {
+						logger.warn("Skipping unknown repo journal record: "
+								+ file + " at " + validSize);
+					}
+				} catch (EOFException e) {
+					/** torn tail, or short payload */
+					return validSize;
+				}
+				validSize += length + 8;
+			}
+		} catch (EOFException e) {
+			/** header is torn */
+			return 0;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * apply one record; returns false for a record type written by a newer
+	 * store, which is skipped
+	 */
+	boolean replay(final byte[] payload) throws IOException {
+		final DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(payload));
+		final byte type = input.readByte();
+		switch (type) {
+		case RECORD_PUT:
+			final String name = input.readUTF();
+			final String version = readString(input);
+			final String uri = input.readUTF();
+			final String digest = readString(input);
+			try {
+				recordMap.put(name, new RepoRecord(name, version, new URI(uri),
+						digest));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid repo uri: " + uri, e);
+			}
+			return true;
+		case RECORD_REMOVE:
+			recordMap.remove(input.readUTF());
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** force appended records to disk; guarded by this */
+	void sync() throws IOException {
+		if (syncFuture != null) {
+			syncFuture.cancel(false);
+			syncFuture = null;
+		}
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+
+	/** batch fsync of updates arriving within sync delay */
+	void syncLater() throws IOException {
+		if (syncDelay <= 0) {
+			sync();
+			return;
+		}
+		if (syncFuture != null) {
+			return;
+		}
+		try {
+			syncFuture = timer.schedule(new Runnable() {
+				public void run() {
+					synchronized (RepoJournalStore.this) {
+						syncFuture = null;
+						try {
+							if (channel != null) {
+								channel.force(false);
+							}
+						} catch (IOException e) {
+							logger.error("Failed to sync repo journal: " + file,
+									e);
+						}
+					}
+				}
+			}, syncDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			/** timer is stopped, do not lose the update */
+			sync();
+		}
+	}
+
+}
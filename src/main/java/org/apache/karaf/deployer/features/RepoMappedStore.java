@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory mapped file of fixed size repo records.
+ * <p>
+ * Record slots are addressed by repo name through an in-memory slot index;
+ * updates write characters straight into the mapped buffer without encoding
+ * them into intermediate byte arrays, and load is a single scan of the
+ * mapped file. Replacement goes to a free slot with higher sequence before
+ * the old slot is released, so a crash leaves at least one complete record
+ * per repo.
+ * <p>
+ * Record: used flag, sequence, then name, version, uri and digest, each as
+ * character count and fixed capacity of characters; field offsets follow
+ * from field capacities.
+ */
+class RepoMappedStore implements RepoStore {
+
+	/** file header: magic, record size, slot count */
+	static final int HEADER_SIZE = 16;
+
+	static final int MAGIC = 0x52504D31;
+
+	/** initial number of record slots */
+	static final int SLOT_COUNT = 256;
+
+	/** character count marking null value */
+	static final short TEXT_NULL = -1;
+
+	/*
+	 * Record layout, in field order; each offset follows from the previous
+	 * offset and its field size.
+	 */
+
+	static final int DIGEST_MAX = 64;
+
+	static final int NAME_MAX = 128;
+
+	static final int URI_MAX = 512;
+
+	static final int VERSION_MAX = 64;
+
+	static final int OFFSET_SEQUENCE = 8;
+
+	static final int OFFSET_NAME = OFFSET_SEQUENCE + 8;
+
+	static final int OFFSET_VERSION = OFFSET_NAME + textSize(NAME_MAX);
+
+	static final int OFFSET_URI = OFFSET_VERSION + textSize(VERSION_MAX);
+
+	static final int OFFSET_DIGEST = OFFSET_URI + textSize(URI_MAX);
+
+	/** end of the last field */
+	static final int RECORD_END = OFFSET_DIGEST + textSize(DIGEST_MAX);
+
+	static final int RECORD_SIZE = 2048;
+
+	static {
+		if (RECORD_END > RECORD_SIZE) {
+			throw new ExceptionInInitializerError("Record fields end at "
+					+ RECORD_END + " past record size " + RECORD_SIZE);
+		}
+	}
+
+	/** bytes of text field: character count, then capacity characters */
+	static int textSize(final int capacity) {
+		return 2 + 2 * capacity;
+	}
+
+	private MappedByteBuffer buffer;
+
+	private FileChannel channel;
+
+	private final File file;
+
+	/** number of free slots on the stack; guarded by this */
+	private int freeCount;
+
+	/** stack of free slots; guarded by this */
+	private int[] freeSlots = new int[0];
+
+	private final Logger logger = LoggerFactory
+			.getLogger(RepoMappedStore.class);
+
+	/** highest record sequence; guarded by this */
+	private long sequence;
+
+	private int slotCount;
+
+	/** slot of live record by repo name; guarded by this */
+	private final Map<String, Integer> slotMap = new HashMap<String, Integer>();
+
+	/** delay of batched flush, millis, zero to flush each update */
+	private final long syncDelay;
+
+	/** pending batched flush; guarded by this */
+	private ScheduledFuture<?> syncFuture;
+
+	private final ScheduledExecutorService timer;
+
+	RepoMappedStore(final File file, final ScheduledExecutorService timer,
+			final long syncDelay) {
+		this.file = file;
+		this.timer = timer;
+		this.syncDelay = syncDelay;
+	}
+
+	/** slot for new record, growing the file when full */
+	int allocate() throws IOException {
+		if (freeCount == 0) {
+			map(slotCount * 2);
+		}
+		return freeSlots[--freeCount];
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		sync();
+		channel.close();
+		channel = null;
+		buffer = null;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	public File file() {
+		return file;
+	}
+
+	/** check value fits record slot before touching the buffer */
+	void fits(final String text, final int max, final String field)
+			throws IOException {
+		if (text != null && text.length() > max) {
+			throw new IOException("Repo record " + field + " exceeds "
+					+ max + " characters: " + text);
+		}
+	}
+
+	public synchronized Map<String, RepoRecord> load() throws IOException {
+		final boolean isNew = !file.exists() || file.length() == 0;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		slotCount = 0;
+		slotMap.clear();
+		freeCount = 0;
+		sequence = 0;
+		if (isNew) {
+			map(SLOT_COUNT);
+			return new HashMap<String, RepoRecord>();
+		}
+		final MappedByteBuffer header = channel.map(
+				FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if (header.getInt(0) != MAGIC || header.getInt(4) != RECORD_SIZE) {
+			throw new IOException("Not a repo record file: " + file);
+		}
+		map(header.getInt(8));
+		final Map<String, RepoRecord> recordMap = new HashMap<String, RepoRecord>();
+		final Map<String, Long> sequenceMap = new HashMap<String, Long>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			final int base = offset(slot);
+			if (buffer.get(base) == 0) {
+				continue;
+			}
+			final long recordSequence = buffer.getLong(base + OFFSET_SEQUENCE);
+			final String name = readText(base + OFFSET_NAME);
+			final Long knownSequence = sequenceMap.get(name);
+			if (knownSequence != null) {
+				/** replacement interrupted by crash: keep newer record */
+				final int older = recordSequence > knownSequence ? slotMap
+						.get(name) : slot;
+				buffer.put(offset(older), (byte) 0);
+				if (older == slot) {
+					continue;
+				}
+			}
+			try {
+				recordMap.put(name, new RepoRecord(name,
+						readText(base + OFFSET_VERSION), new URI(
+								readText(base + OFFSET_URI)), readText(base
+								+ OFFSET_DIGEST)));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid repo uri in slot " + slot, e);
+			}
+			sequenceMap.put(name, recordSequence);
+			slotMap.put(name, slot);
+			sequence = Math.max(sequence, recordSequence);
+		}
+		freeCount = 0;
+		for (int slot = slotCount - 1; slot >= 0; slot--) {
+			if (buffer.get(offset(slot)) == 0) {
+				freeSlots[freeCount++] = slot;
+			}
+		}
+		return recordMap;
+	}
+
+	/** map file with at least given number of slots */
+	void map(final int count) throws IOException {
+		final int oldCount = slotCount;
+		if (buffer != null) {
+			buffer.force();
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+				+ (long) count * RECORD_SIZE);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, RECORD_SIZE);
+		buffer.putInt(8, count);
+		slotCount = count;
+		final int[] slots = new int[count];
+		System.arraycopy(freeSlots, 0, slots, 0, freeCount);
+		freeSlots = slots;
+		for (int slot = count - 1; slot >= oldCount; slot--) {
+			freeSlots[freeCount++] = slot;
+		}
+	}
+
+	int offset(final int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	public synchronized void put(final RepoRecord record) throws IOException {
+		fits(record.name, NAME_MAX, "name");
+		fits(record.version, VERSION_MAX, "version");
+		fits(record.uri.toString(), URI_MAX, "uri");
+		fits(record.digest, DIGEST_MAX, "digest");
+		final int slot = allocate();
+		final int base = offset(slot);
+		buffer.putLong(base + OFFSET_SEQUENCE, ++sequence);
+		writeText(base + OFFSET_NAME, record.name);
+		writeText(base + OFFSET_VERSION, record.version);
+		writeText(base + OFFSET_URI, record.uri.toString());
+		writeText(base + OFFSET_DIGEST, record.digest);
+		buffer.put(base, (byte) 1);
+		final Integer older = slotMap.put(record.name, slot);
+		if (older != null) {
+			release(older);
+		}
+		syncLater();
+	}
+
+	String readText(final int offset) {
+		final short count = buffer.getShort(offset);
+		if (count == TEXT_NULL) {
+			return null;
+		}
+		final char[] text = new char[count];
+		for (int index = 0; index < count; index++) {
+			text[index] = buffer.getChar(offset + 2 + 2 * index);
+		}
+		return new String(text);
+	}
+
+	void release(final int slot) {
+		buffer.put(offset(slot), (byte) 0);
+		freeSlots[freeCount++] = slot;
+	}
+
+	public synchronized void remove(final String name) throws IOException {
+		final Integer slot = slotMap.remove(name);
+		if (slot != null) {
+			release(slot);
+			syncLater();
+		}
+	}
+
+	/** force mapped updates to disk; guarded by this */
+	void sync() {
+		if (syncFuture != null) {
+			syncFuture.cancel(false);
+			syncFuture = null;
+		}
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	/** batch flush of updates arriving within sync delay */
+	void syncLater() {
+		if (syncDelay <= 0) {
+			sync();
+			return;
+		}
+		if (syncFuture != null) {
+			return;
+		}
+		try {
+			syncFuture = timer.schedule(new Runnable() {
+				public void run() {
+					synchronized (RepoMappedStore.this) {
+						syncFuture = null;
+						if (buffer != null) {
+							buffer.force();
+						}
+					}
+				}
+			}, syncDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			/** timer is stopped, do not lose the update */
+			sync();
+		}
+	}
+
+	/** write characters in place, no intermediate encoding */
+	void writeText(final int offset, final String text) {
+		if (text == null) {
+			buffer.putShort(offset, TEXT_NULL);
+			return;
+		}
+		final int count = text.length();
+		for (int index = 0; index < count; index++) {
+			buffer.putChar(offset + 2 + 2 * index, text.charAt(index));
+		}
+		buffer.putShort(offset, (short) count);
+	}
+
+}
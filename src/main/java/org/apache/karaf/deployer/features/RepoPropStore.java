@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.osgi.framework.Version;
+
+/**
+ * Original text state file: every update rewrites the whole file.
+ * <p>
+ * Kept as source of migration to newer stores. Reads records keyed by repo
+ * name, and the layout of the first listener: url count and urls keyed by
+ * bundle symbolic name and version.
+ */
+class RepoPropStore implements RepoStore {
+
+	/** legacy state file key suffix: number of repo urls of bundle */
+	static final String LEGACY_COUNT = ".count";
+
+	/** legacy state file key suffix: repo url of bundle, before index */
+	static final String LEGACY_URL = ".url.";
+
+	/** state file key suffix: descriptor digest */
+	static final String PROP_DIGEST = ".digest";
+
+	/** state file key suffix: descriptor uri */
+	static final String PROP_URI = ".uri";
+
+	/** state file key suffix: repo bundle version */
+	static final String PROP_VERSION = ".version";
+
+	private final File file;
+
+	/** guarded by this */
+	private final Map<String, RepoRecord> recordMap = new HashMap<String, RepoRecord>();
+
+	/** keys of last load not mapped to a record; guarded by this */
+	private final Set<String> unknownSet = new TreeSet<String>();
+
+	RepoPropStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Index of the dash between symbolic name and version of a legacy key
+	 * prefix, or -1; symbolic name itself may contain dashes.
+	 */
+	static int versionSplit(final String prefix) {
+		int split = prefix.indexOf('-');
+		while (split > 0) {
+			final String version = prefix.substring(split + 1);
+			if (!version.isEmpty() && Character.isDigit(version.charAt(0))) {
+				try {
+					Version.parseVersion(version);
+					return split;
+				} catch (IllegalArgumentException e) {
+					/** dash of symbolic name */
+				}
+			}
+			split = prefix.indexOf('-', split + 1);
+		}
+		return -1;
+	}
+
+	public void close() {
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	public File file() {
+		return file;
+	}
+
+	public synchronized Map<String, RepoRecord> load() throws IOException {
+		final Properties props = new Properties();
+		if (file.exists()) {
+			final InputStream input = new FileInputStream(file);
+			try {
+				props.load(input);
+			} finally {
+				input.close();
+			}
+		}
+		recordMap.clear();
+		unknownSet.clear();
+		unknownSet.addAll(props.stringPropertyNames());
+		for (final String key : props.stringPropertyNames()) {
+			if (key.endsWith(LEGACY_COUNT)) {
+				loadLegacy(props, key);
+				continue;
+			}
+			if (!key.endsWith(PROP_URI)) {
+				continue;
+			}
+			final String name = key.substring(0,
+					key.length() - PROP_URI.length());
+			final String version = props.getProperty(name + PROP_VERSION);
+			final String digest = props.getProperty(name + PROP_DIGEST);
+			try {
+				final URI uri = new URI(props.getProperty(key));
+				recordMap.put(name, new RepoRecord(name, version, uri, digest));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid repo uri: " + key, e);
+			}
+			unknownSet.remove(key);
+			unknownSet.remove(name + PROP_VERSION);
+			unknownSet.remove(name + PROP_DIGEST);
+		}
+		return new HashMap<String, RepoRecord>(recordMap);
+	}
+
+	/**
+	 * Map legacy bundle entry to a record; entry with several urls or which
+	 * does not parse stays unknown.
+	 */
+	private void loadLegacy(final Properties props, final String key) {
+		final String prefix = key.substring(0,
+				key.length() - LEGACY_COUNT.length());
+		final int split = versionSplit(prefix);
+		final int count;
+		try {
+			count = Integer.parseInt(props.getProperty(key).trim());
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (split < 0 || count < 0 || count > 1) {
+			return;
+		}
+		if (count == 0) {
+			unknownSet.remove(key);
+			return;
+		}
+		final String urlKey = prefix + LEGACY_URL + 0;
+		final String text = props.getProperty(urlKey);
+		if (text == null) {
+			return;
+		}
+		final URI uri;
+		try {
+			uri = new URI(text);
+		} catch (URISyntaxException e) {
+			return;
+		}
+		final String name = prefix.substring(0, split);
+		final String version = prefix.substring(split + 1);
+		recordMap.put(name, new RepoRecord(name, version, uri, null));
+		unknownSet.remove(key);
+		unknownSet.remove(urlKey);
+	}
+
+	public synchronized void put(final RepoRecord record) throws IOException {
+		recordMap.put(record.name, record);
+		save();
+	}
+
+	public synchronized void remove(final String name) throws IOException {
+		if (recordMap.remove(name) != null) {
+			save();
+		}
+	}
+
+	/** rewrite whole state file; guarded by this */
+	void save() throws IOException {
+		final Properties props = new Properties();
+		for (final RepoRecord record : recordMap.values()) {
+			props.setProperty(record.name + PROP_URI, record.uri.toString());
+			if (record.version != null) {
+				props.setProperty(record.name + PROP_VERSION, record.version);
+			}
+			if (record.digest != null) {
+				props.setProperty(record.name + PROP_DIGEST, record.digest);
+			}
+		}
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			props.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+
+	/** keys of last load which did not map to a record */
+	synchronized Set<String> unknownKeys() {
+		return new TreeSet<String>(unknownSet);
+	}
+
+}
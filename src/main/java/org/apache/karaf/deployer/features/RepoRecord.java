@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URI;
+
+/**
+ * Bookkeeping of repository deployed by this listener.
+ */
+class RepoRecord {
+
+	/** descriptor content digest, or null when unknown */
+	final String digest;
+
+	/** repo name, same as repo bundle symbolic name */
+	final String name;
+
+	/** repo descriptor uri registered with features service */
+	final URI uri;
+
+	/** repo bundle version */
+	final String version;
+
+	RepoRecord(final String name, final String version, final URI uri,
+			final String digest) {
+		this.name = name;
+		this.version = version;
+		this.uri = uri;
+		this.digest = digest;
+	}
+
+	/** same descriptor content */
+	boolean isSame(final String digest) {
+		return this.digest != null && this.digest.equals(digest);
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + version + " " + uri + " " + digest;
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Repo add operations parked until a pending remove of the same repo
+ * completes.
+ * <p>
+ * Remove path fires the signal for the repo name, which hands back the
+ * parked add for execution. Parked add expires after a timeout.
+ */
+class RepoSignal {
+
+	class Parked implements Runnable {
+
+		final String repoName;
+		final long since = System.currentTimeMillis();
+		final Runnable task;
+		volatile ScheduledFuture<?> timeout;
+
+		Parked(final String repoName, final Runnable task) {
+			this.repoName = repoName;
+			this.task = task;
+		}
+
+		/** timeout */
+		public void run() {
+			if (unpark(this)) {
+				logger.error("Timeout waiting for repo remove: " + repoName);
+			}
+		}
+
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(RepoSignal.class);
+
+	private final Map<String, Parked> parkedMap = new HashMap<String, Parked>();
+
+	private final ScheduledExecutorService timer;
+
+	/** total time of parked adds until fired or expired, millis */
+	private final AtomicLong waitTime = new AtomicLong();
+
+	RepoSignal(final ScheduledExecutorService timer) {
+		this.timer = timer;
+	}
+
+	/** drop all parked operations */
+	synchronized int cancelAll() {
+		final int count = parkedMap.size();
+		for (final Parked parked : parkedMap.values()) {
+			parked.timeout.cancel(false);
+		}
+		parkedMap.clear();
+		return count;
+	}
+
+	/** repo remove is complete; returns parked add to run, or null */
+	synchronized Runnable fire(final String repoName) {
+		final Parked parked = parkedMap.remove(repoName);
+		if (parked == null) {
+			return null;
+		}
+		parked.timeout.cancel(false);
+		final long wait = System.currentTimeMillis() - parked.since;
+		waitTime.addAndGet(wait);
+		logger.info("Repo remove done, resuming add: " + repoName
+				+ " after " + wait + " ms");
+		return parked.task;
+	}
+
+	/** park repo add, replacing earlier parked add of the same repo */
+	synchronized void park(final String repoName, final Runnable task,
+			final long timeout) {
+		final Parked parked = new Parked(repoName, task);
+		try {
+			parked.timeout = timer.schedule(parked, timeout,
+					TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.error("Deployer is stopping, dropped repo add: " + repoName);
+			return;
+		}
+		final Parked previous = parkedMap.put(repoName, parked);
+		if (previous != null) {
+			previous.timeout.cancel(false);
+			logger.info("Replaced parked repo add: " + repoName);
+		}
+	}
+
+	synchronized int size() {
+		return parkedMap.size();
+	}
+
+	private synchronized boolean unpark(final Parked parked) {
+		if (parkedMap.get(parked.repoName) == parked) {
+			parkedMap.remove(parked.repoName);
+			waitTime.addAndGet(System.currentTimeMillis() - parked.since);
+			return true;
+		}
+		return false;
+	}
+
+	long waitTime() {
+		return waitTime.get();
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persistent bookkeeping of repositories deployed by the listener.
+ * <p>
+ * Store is opened by load, and is called from concurrent repo workers;
+ * implementations serialize updates.
+ */
+interface RepoStore {
+
+	/** flush pending updates and release the store */
+	void close() throws IOException;
+
+	/** false when store has no persisted state yet */
+	boolean exists();
+
+	/** backing file of the store */
+	File file();
+
+	/** open store and read persisted records by repo name */
+	Map<String, RepoRecord> load() throws IOException;
+
+	/** persist added or replaced record */
+	void put(RepoRecord record) throws IOException;
+
+	/** persist record removal */
+	void remove(String name) throws IOException;
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.internal.RepositoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dry run check of repository descriptor before it is added: schema,
+ * feature dependencies, dependency cycles and bundle locations. Works on a
+ * private model of the descriptor; features service and framework state are
+ * not touched.
+ * <p>
+ * The model is loaded with the internal repository class of the features
+ * service; when that class is not visible, only the schema check of the
+ * public features service api is done.
+ */
+class RepoValidator {
+
+	/**
+	 * descriptor loader, the only user of internal features classes; linked
+	 * on first use, so a missing class surfaces at the call
+	 */
+	static class ModelLoader {
+
+		static Repository load(final URI uri) throws Exception {
+			final RepositoryImpl repo = new RepositoryImpl(uri);
+			repo.load();
+			return repo;
+		}
+
+	}
+
+	/** internal repository class is visible */
+	private static volatile boolean isModelAvailable = true;
+
+	private final FeaturesService featuresService;
+
+	private final Logger logger = LoggerFactory.getLogger(RepoValidator.class);
+
+	RepoValidator(final FeaturesService featuresService) {
+		this.featuresService = featuresService;
+	}
+
+	/** report dependency cycles reachable from the feature */
+	void cycles(final Feature feature, final Map<String, Feature> modelMap,
+			final Set<String> pathSet, final Set<String> doneSet,
+			final List<String> problemList) {
+		final String id = feature.getId();
+		if (doneSet.contains(id)) {
+			return;
+		}
+		if (!pathSet.add(id)) {
+			problemList.add("Circular feature dependency: " + pathSet);
+			return;
+		}
+		for (final Dependency dependency : feature.getDependencies()) {
+			final Feature target = find(dependency, modelMap);
+			if (target != null) {
+				cycles(target, modelMap, pathSet, doneSet, problemList);
+			}
+		}
+		pathSet.remove(id);
+		doneSet.add(id);
+	}
+
+	/** dependency target in the descriptor model */
+	Feature find(final Dependency dependency,
+			final Map<String, Feature> modelMap) {
+		final String version = dependency.getVersion();
+		final boolean isAny = version == null || version.length() == 0
+				|| "0.0.0".equals(version);
+		Feature match = null;
+		for (final Feature feature : modelMap.values()) {
+			if (!feature.getName().equals(dependency.getName())) {
+				continue;
+			}
+			if (isAny || version.equals(feature.getVersion())) {
+				match = feature;
+			}
+		}
+		return match;
+	}
+
+	boolean isResolved(final Dependency dependency,
+			final Map<String, Feature> modelMap) {
+		if (find(dependency, modelMap) != null) {
+			return true;
+		}
+		try {
+			return featuresService.getFeature(dependency.getName(),
+					dependency.getVersion()) != null;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/** load descriptor and referenced descriptors into private model */
+	void load(final URI uri, final Map<String, Feature> modelMap,
+			final Set<URI> visitSet) throws Exception {
+		if (!visitSet.add(uri)) {
+			return;
+		}
+		final Repository repo = ModelLoader.load(uri);
+		for (final Feature feature : repo.getFeatures()) {
+			modelMap.put(feature.getId(), feature);
+		}
+		for (final URI inner : repo.getRepositories()) {
+			load(inner, modelMap, visitSet);
+		}
+	}
+
+	/** problem with bundle location, or null */
+	String location(final String location) {
+		if (location == null || location.trim().length() == 0) {
+			return "empty bundle location";
+		}
+		final URI uri;
+		try {
+			uri = new URI(location.trim());
+		} catch (URISyntaxException e) {
+			return "invalid bundle location: " + location;
+		}
+		if (uri.getScheme() == null) {
+			return "bundle location without scheme: " + location;
+		}
+		if ("file".equals(uri.getScheme())) {
+			try {
+				if (!new File(uri).exists()) {
+					return "missing bundle file: " + location;
+				}
+			} catch (IllegalArgumentException e) {
+				return "invalid bundle file location: " + location;
+			}
+		}
+		return null;
+	}
+
+	/** throws with every problem found in the descriptor */
+	void validate(final URI uri) throws Exception {
+		featuresService.validateRepository(uri);
+		if (!isModelAvailable) {
+			return;
+		}
+		final Map<String, Feature> modelMap = new HashMap<String, Feature>();
+		try {
+			load(uri, modelMap, new HashSet<URI>());
+		} catch (NoClassDefFoundError e) {
+			isModelAvailable = false;
+			logger.warn("Features model is not available, "
+					+ "validating descriptor schema only: " + e);
+			return;
+		}
+		final List<String> problemList = new ArrayList<String>();
+		for (final Feature feature : modelMap.values()) {
+			for (final Dependency dependency : feature.getDependencies()) {
+				if (!isResolved(dependency, modelMap)) {
+					problemList.add(feature.getId()
+							+ ": unresolved dependency: "
+							+ dependency.getName() + "/"
+							+ dependency.getVersion());
+				}
+			}
+			for (final BundleInfo bundle : feature.getBundles()) {
+				final String problem = location(bundle.getLocation());
+				if (problem != null) {
+					problemList.add(feature.getId() + ": " + problem);
+				}
+			}
+		}
+		final Set<String> doneSet = new HashSet<String>();
+		for (final Feature feature : modelMap.values()) {
+			cycles(feature, modelMap, new LinkedHashSet<String>(), doneSet,
+					problemList);
+		}
+		if (!problemList.isEmpty()) {
+			throw new IllegalStateException("Invalid repository: " + uri
+					+ " " + problemList);
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timed phase of a deploy operation; spans of one operation share trace id
+ * and nest through parent id.
+ */
+public class TraceSpan {
+
+	/** span handed out while tracing is disabled; records nothing */
+	static final TraceSpan NOOP = new TraceSpan(null, null, "noop", 0, 0, 0);
+
+	/** wall clock origin for monotonic span timestamps */
+	private static final long ORIGIN_MICROS = System.currentTimeMillis() * 1000;
+
+	private static final long ORIGIN_NANOS = System.nanoTime();
+
+	/** attributes, created on first use */
+	private Map<String, String> attributeMap;
+
+	private volatile long duration = -1;
+
+	private String error;
+
+	private final String name;
+
+	private final long parentId;
+
+	/** span current on this thread before this one started */
+	final TraceSpan previous;
+
+	private final long spanId;
+
+	private final long startNanos = System.nanoTime();
+
+	private final String thread = Thread.currentThread().getName();
+
+	private final long threadId = Thread.currentThread().getId();
+
+	private final long traceId;
+
+	private final Tracer tracer;
+
+	TraceSpan(final Tracer tracer, final TraceSpan previous,
+			final String name, final long traceId, final long spanId,
+			final long parentId) {
+		this.tracer = tracer;
+		this.previous = previous;
+		this.name = name;
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.parentId = parentId;
+	}
+
+	public TraceSpan attribute(final String key, final Object value) {
+		if (this == NOOP) {
+			return this;
+		}
+		synchronized (this) {
+			if (attributeMap == null) {
+				attributeMap = new LinkedHashMap<String, String>();
+			}
+			attributeMap.put(key, String.valueOf(value));
+		}
+		return this;
+	}
+
+	/** finish span and hand it to exporter */
+	public void end() {
+		if (this == NOOP || duration >= 0) {
+			return;
+		}
+		duration = System.nanoTime() - startNanos;
+		tracer.end(this);
+	}
+
+	public TraceSpan error(final Throwable e) {
+		if (this != NOOP) {
+			error = e.getClass().getName() + ": " + e.getMessage();
+		}
+		return this;
+	}
+
+	public synchronized Map<String, String> getAttributes() {
+		if (attributeMap == null) {
+			return Collections.emptyMap();
+		}
+		return new LinkedHashMap<String, String>(attributeMap);
+	}
+
+	/** nanos, or -1 while running */
+	public long getDuration() {
+		return duration;
+	}
+
+	/** failure description, or null */
+	public String getError() {
+		return error;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** zero for root span */
+	public long getParentId() {
+		return parentId;
+	}
+
+	public long getSpanId() {
+		return spanId;
+	}
+
+	/** epoch micros, derived from monotonic clock so nested spans order */
+	public long getStart() {
+		return ORIGIN_MICROS + (startNanos - ORIGIN_NANOS) / 1000;
+	}
+
+	public String getThread() {
+		return thread;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public long getTraceId() {
+		return traceId;
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + traceId + "/" + spanId + "/" + parentId;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates nested trace spans per thread and hands finished spans to the
+ * exporter. Without exporter every span is a shared no-op instance, so
+ * disabled tracing costs one volatile read.
+ */
+class Tracer {
+
+	private final ThreadLocal<TraceSpan> current = new ThreadLocal<TraceSpan>();
+
+	private volatile TraceExporter exporter;
+
+	private final AtomicLong idCounter = new AtomicLong();
+
+	/** span current on this thread, or no-op span */
+	TraceSpan current() {
+		final TraceSpan span = current.get();
+		return span == null ? TraceSpan.NOOP : span;
+	}
+
+	void end(final TraceSpan span) {
+		if (current.get() == span) {
+			if (span.previous == null) {
+				current.remove();
+			} else {
+				current.set(span.previous);
+			}
+		}
+		final TraceExporter exporter = this.exporter;
+		if (exporter != null) {
+			exporter.export(span);
+		}
+	}
+
+	TraceExporter getExporter() {
+		return exporter;
+	}
+
+	boolean isEnabled() {
+		return exporter != null;
+	}
+
+	void setExporter(final TraceExporter exporter) {
+		this.exporter = exporter;
+	}
+
+	/** child of current span of this thread, or new trace */
+	TraceSpan start(final String name) {
+		return start(name, current.get());
+	}
+
+	/** child of given span, usually handed over from another thread */
+	TraceSpan start(final String name, final TraceSpan parent) {
+		if (exporter == null) {
+			return TraceSpan.NOOP;
+		}
+		final long spanId = idCounter.incrementAndGet();
+		final TraceSpan span;
+		if (parent == null || parent == TraceSpan.NOOP) {
+			span = new TraceSpan(this, current.get(), name, spanId, spanId, 0);
+		} else {
+			span = new TraceSpan(this, current.get(), name,
+					parent.getTraceId(), spanId, parent.getSpanId());
+		}
+		current.set(span);
+		return span;
+	}
+
+}
@@ -0,0 +1,492 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesListener;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.RepositoryEvent;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+
+/**
+ * In memory framework and features service for listener tests: repo bundles
+ * are folders with a descriptor entry, features service follows the
+ * install and uninstall semantics of Karaf 3.0.0.RC1 repository calls.
+ */
+class DeployerFixture implements InvocationHandler {
+
+	/** fixture bundle, entries served from bundle folder */
+	class FixtureBundle implements InvocationHandler {
+
+		final File folder;
+		final long id;
+		final String name;
+		volatile int state = Bundle.INSTALLED;
+
+		FixtureBundle(final long id, final String name, final File folder) {
+			this.id = id;
+			this.name = name;
+			this.folder = folder;
+		}
+
+		Enumeration<String> entryPaths(final String path) {
+			final String[] list = new File(folder, path).list();
+			if (list == null || list.length == 0) {
+				return null;
+			}
+			final List<String> pathList = new ArrayList<String>();
+			for (final String entry : list) {
+				pathList.add(path + entry);
+			}
+			return Collections.enumeration(pathList);
+		}
+
+		public Object invoke(final Object proxy, final Method method,
+				final Object[] args) throws Throwable {
+			final String call = method.getName();
+			if ("getBundleId".equals(call)) {
+				return id;
+			}
+			if ("getSymbolicName".equals(call)) {
+				return name;
+			}
+			if ("getVersion".equals(call)) {
+				return Version.parseVersion("1.0.0");
+			}
+			if ("getState".equals(call)) {
+				return state;
+			}
+			if ("getLastModified".equals(call)) {
+				return 1L;
+			}
+			if ("getEntryPaths".equals(call)) {
+				return entryPaths((String) args[0]);
+			}
+			if ("getEntry".equals(call)) {
+				final File file = new File(folder, (String) args[0]);
+				return file.exists() ? file.toURI().toURL() : null;
+			}
+			return basic(proxy, method, args, "bundle " + name + " " + id);
+		}
+
+	}
+
+	static Object basic(final Object proxy, final Method method,
+			final Object[] args, final String text) {
+		final String call = method.getName();
+		if ("hashCode".equals(call)) {
+			return System.identityHashCode(proxy);
+		}
+		if ("equals".equals(call)) {
+			return proxy == args[0];
+		}
+		if ("toString".equals(call)) {
+			return text;
+		}
+		final Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	static void delete(final File file) {
+		final File[] list = file.listFiles();
+		if (list != null) {
+			for (final File child : list) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/** feature without dependencies; install attribute may be null */
+	static Feature feature(final String name, final String install) {
+		final String id = name + "/1.0.0";
+		return (Feature) Proxy.newProxyInstance(
+				DeployerFixture.class.getClassLoader(),
+				new Class<?>[] { Feature.class }, new InvocationHandler() {
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						final String call = method.getName();
+						if ("getName".equals(call)) {
+							return name;
+						}
+						if ("getVersion".equals(call)) {
+							return "1.0.0";
+						}
+						if ("getId".equals(call)) {
+							return id;
+						}
+						if ("getInstall".equals(call)) {
+							return install;
+						}
+						if ("getDependencies".equals(call)
+								|| "getBundles".equals(call)) {
+							return Collections.emptyList();
+						}
+						return basic(proxy, method, args, "feature " + id);
+					}
+				});
+	}
+
+	/** repo name of descriptor uri, from descriptor file name */
+	static String repoName(final URI uri) {
+		final String name = new File(uri.getPath()).getName();
+		final int index = name.lastIndexOf('.');
+		return index > 0 ? name.substring(0, index) : name;
+	}
+
+	/** number of addRepository calls */
+	final AtomicLong addCount = new AtomicLong();
+
+	/** time of latest addRepository by repo name, nanos */
+	final Map<String, Long> addTimeMap = new ConcurrentHashMap<String, Long>();
+
+	final Map<Long, Bundle> bundleMap = new ConcurrentHashMap<Long, Bundle>();
+
+	final BundleContext context;
+
+	/** features of repositories by repo name */
+	final Map<String, Feature[]> featureMap = new ConcurrentHashMap<String, Feature[]>();
+
+	final List<FeaturesListener> featuresListenerList = new CopyOnWriteArrayList<FeaturesListener>();
+
+	final FeaturesService featuresService;
+
+	final File folder;
+
+	private final AtomicLong idCounter = new AtomicLong(100);
+
+	/** ids of installed features */
+	final Set<String> installedSet = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** repository events are not delivered, as if missed */
+	volatile boolean isEventLost;
+
+	/** latency of repository add and remove, millis */
+	volatile long latency;
+
+	final List<BundleListener> listenerList = new CopyOnWriteArrayList<BundleListener>();
+
+	/** number of removeRepository calls */
+	final AtomicLong removeCount = new AtomicLong();
+
+	final Map<URI, Repository> repoMap = new ConcurrentHashMap<URI, Repository>();
+
+	DeployerFixture(final File folder) {
+		this.folder = folder;
+		delete(folder);
+		new File(folder, "data").mkdirs();
+		this.context = (BundleContext) Proxy.newProxyInstance(
+				DeployerFixture.class.getClassLoader(),
+				new Class<?>[] { BundleContext.class }, this);
+		this.featuresService = (FeaturesService) Proxy.newProxyInstance(
+				DeployerFixture.class.getClassLoader(),
+				new Class<?>[] { FeaturesService.class },
+				new InvocationHandler() {
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Exception {
+						return features(proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * installed repo bundle with given descriptor content; plain bundle
+	 * without descriptor when content is null
+	 */
+	Bundle bundle(final String name, final String content) throws IOException {
+		final long id = idCounter.incrementAndGet();
+		final File bundleFolder = new File(folder, "bundle-" + id);
+		if (content == null) {
+			bundleFolder.mkdirs();
+		} else {
+			final File entry = new File(bundleFolder,
+					FeatureDeploymentListener.META_PATH + name + "."
+							+ FeatureDeploymentListener.EXTENSION);
+			entry.getParentFile().mkdirs();
+			final OutputStream output = new FileOutputStream(entry);
+			try {
+				output.write(content.getBytes("UTF-8"));
+			} finally {
+				output.close();
+			}
+		}
+		final Bundle bundle = (Bundle) Proxy.newProxyInstance(
+				DeployerFixture.class.getClassLoader(),
+				new Class<?>[] { Bundle.class }, new FixtureBundle(id, name,
+						bundleFolder));
+		bundleMap.put(id, bundle);
+		return bundle;
+	}
+
+	/** deliver bundle event, after moving bundle into matching state */
+	void fire(final Bundle bundle, final int type) {
+		switch (type) {
+		case BundleEvent.RESOLVED:
+			state(bundle, Bundle.RESOLVED);
+			break;
+		case BundleEvent.UNINSTALLED:
+			state(bundle, Bundle.UNINSTALLED);
+			bundleMap.remove(bundle.getBundleId());
+			break;
+		}
+		final BundleEvent event = new BundleEvent(type, bundle);
+		for (final BundleListener listener : listenerList) {
+			listener.bundleChanged(event);
+		}
+	}
+
+	Object features(final Object proxy, final Method method,
+			final Object[] args) throws Exception {
+		final String call = method.getName();
+		if ("addRepository".equals(call)) {
+			pause();
+			final URI uri = (URI) args[0];
+			final Repository repo = repository(uri);
+			repoMap.put(uri, repo);
+			addCount.incrementAndGet();
+			addTimeMap.put(repo.getName(), System.nanoTime());
+			for (final FeaturesListener listener : listeners()) {
+				listener.repositoryEvent(new RepositoryEvent(repo,
+						RepositoryEvent.EventType.RepositoryAdded, false));
+			}
+			if (args.length > 1 && (Boolean) args[1]) {
+				for (final Feature feature : repo.getFeatures()) {
+					installedSet.add(feature.getId());
+				}
+			}
+			return null;
+		}
+		if ("removeRepository".equals(call)) {
+			pause();
+			/** unknown uri is silently ignored, as by features service */
+			final Repository repo = repoMap.remove(args[0]);
+			removeCount.incrementAndGet();
+			if (repo == null) {
+				return null;
+			}
+			if (args.length > 1 && (Boolean) args[1]) {
+				for (final Feature feature : repo.getFeatures()) {
+					installedSet.remove(feature.getId());
+				}
+			}
+			for (final FeaturesListener listener : listeners()) {
+				listener.repositoryEvent(new RepositoryEvent(repo,
+						RepositoryEvent.EventType.RepositoryRemoved, false));
+			}
+			return null;
+		}
+		if ("getRepository".equals(call)) {
+			for (final Repository repo : repoMap.values()) {
+				if (args[0].equals(repo.getName())) {
+					return repo;
+				}
+			}
+			return null;
+		}
+		if ("listRepositories".equals(call)) {
+			return repoMap.values().toArray(new Repository[0]);
+		}
+		if ("isInstalled".equals(call)) {
+			return installedSet.contains(((Feature) args[0]).getId());
+		}
+		if ("installFeature".equals(call) && args[0] instanceof Feature) {
+			installedSet.add(((Feature) args[0]).getId());
+			return null;
+		}
+		if ("installFeatures".equals(call)) {
+			for (final Object feature : (Set<?>) args[0]) {
+				installedSet.add(((Feature) feature).getId());
+			}
+			return null;
+		}
+		if ("uninstallFeature".equals(call) && args.length == 2) {
+			installedSet.remove(args[0] + "/" + args[1]);
+			return null;
+		}
+		if ("listFeatures".equals(call) || "listInstalledFeatures".equals(call)) {
+			return new Feature[0];
+		}
+		return basic(proxy, method, args, "features service");
+	}
+
+	/** bundle context calls */
+	public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+		final String call = method.getName();
+		if ("getDataFile".equals(call)) {
+			return new File(folder, "data/" + args[0]);
+		}
+		if ("addBundleListener".equals(call)) {
+			listenerList.add((BundleListener) args[0]);
+			return null;
+		}
+		if ("removeBundleListener".equals(call)) {
+			listenerList.remove(args[0]);
+			return null;
+		}
+		if ("getBundles".equals(call)) {
+			return bundleMap.values().toArray(new Bundle[0]);
+		}
+		if ("registerService".equals(call)) {
+			final Object service = args[1];
+			if (service instanceof FeaturesListener) {
+				featuresListenerList.add((FeaturesListener) service);
+			}
+			return Proxy.newProxyInstance(
+					DeployerFixture.class.getClassLoader(),
+					new Class<?>[] { ServiceRegistration.class },
+					new InvocationHandler() {
+						public Object invoke(final Object proxy,
+								final Method method, final Object[] args) {
+							if ("unregister".equals(method.getName())) {
+								featuresListenerList.remove(service);
+								return null;
+							}
+							return basic(proxy, method, args, "registration");
+						}
+					});
+		}
+		return basic(proxy, method, args, "bundle context");
+	}
+
+	/** receivers of repository events */
+	List<FeaturesListener> listeners() {
+		if (isEventLost) {
+			return Collections.emptyList();
+		}
+		return featuresListenerList;
+	}
+
+	/** listener wired to fixture, without event debounce */
+	FeatureDeploymentListener listener() {
+		final FeatureDeploymentListener listener = new FeatureDeploymentListener();
+		listener.setBundleContext(context);
+		listener.setFeaturesService(featuresService);
+		listener.setCoalesceWindow(0);
+		listener.setStateSyncDelay(0);
+		return listener;
+	}
+
+	void pause() throws InterruptedException {
+		final long latency = this.latency;
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+	}
+
+	/** wait until listener has no captured, pending or running operations */
+	void quiesce(final FeatureDeploymentListener listener)
+			throws InterruptedException {
+		int idle = 0;
+		while (idle < 3) {
+			Thread.sleep(20);
+			final boolean isIdle = listener.getEventRingPending() == 0
+					&& listener.getCoalescePending() == 0
+					&& listener.getExecutorLaneCount() == 0
+					&& listener.getRepoWaitCount() == 0;
+			idle = isIdle ? idle + 1 : 0;
+		}
+	}
+
+	/** repository known to features service, with registered features */
+	Repository repository(final URI uri) {
+		final String repoName = repoName(uri);
+		return (Repository) Proxy.newProxyInstance(
+				DeployerFixture.class.getClassLoader(),
+				new Class<?>[] { Repository.class }, new InvocationHandler() {
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						final String call = method.getName();
+						if ("getName".equals(call)) {
+							return repoName;
+						}
+						if ("getURI".equals(call)) {
+							return uri;
+						}
+						if ("getFeatures".equals(call)) {
+							final Feature[] features = featureMap.get(repoName);
+							return features == null ? new Feature[0] : features;
+						}
+						if ("getRepositories".equals(call)) {
+							return new URI[0];
+						}
+						return basic(proxy, method, args, "repository "
+								+ repoName);
+					}
+				});
+	}
+
+	/** uri registered with features service for repo name, or null */
+	URI repoURI(final String repoName) {
+		for (final URI uri : repoMap.keySet()) {
+			if (repoName.equals(repoName(uri))) {
+				return uri;
+			}
+		}
+		return null;
+	}
+
+	/** descriptor url of repo bundle */
+	URL repoUrl(final Bundle bundle) throws IOException {
+		final FixtureBundle fixture = (FixtureBundle) Proxy
+				.getInvocationHandler(bundle);
+		return new File(fixture.folder, FeatureDeploymentListener.META_PATH
+				+ fixture.name + "." + FeatureDeploymentListener.EXTENSION)
+				.toURI().toURL();
+	}
+
+	void state(final Bundle bundle, final int state) {
+		((FixtureBundle) Proxy.getInvocationHandler(bundle)).state = state;
+	}
+
+}
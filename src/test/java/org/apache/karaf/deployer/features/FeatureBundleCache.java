@@ -0,0 +1,195 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed disk cache of generated repository bundles.
+ * <p>
+ * Bundle file name is a digest of transformer version, entry method,
+ * descriptor name and descriptor state, so changed descriptors and
+ * transformer upgrades miss the cache and stale entries are never served.
+ * Descriptor state of a local file is its path, size and modification time,
+ * so a cache hit costs one stat; other descriptors are keyed by content
+ * digest. Cache directory is usually
+ * a bundle data file, so entries survive restarts. Access time is kept as
+ * file modification time; least recently used entries are evicted when
+ * total size exceeds the limit.
+ */
+public class FeatureBundleCache {
+
+    static final String EXTENSION = ".jar";
+
+    static final FileFilter FILTER = new FileFilter() {
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(EXTENSION);
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(FeatureBundleCache.class);
+
+    private final File directory;
+
+    private final long maxSize;
+
+    public FeatureBundleCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        directory.mkdirs();
+    }
+
+    /** cache key of the repository bundle made from descriptor */
+    String key(URL url, int method) throws IOException {
+        String state = null;
+        if ("file".equals(url.getProtocol())) {
+            state = stamp(new File(url.getPath()));
+        }
+        if (state == null) {
+            state = DigestUtil.digest(url);
+        }
+        String source = FeatureTransformerXXX.VERSION + "/" + method + "/" + FeatureTransformerXXX.getName(url) + "/" + state;
+        MessageDigest digest = DigestUtil.newDigest();
+        digest.update(source.getBytes("UTF-8"));
+        return DigestUtil.hex(digest.digest());
+    }
+
+    /**
+     * Repository bundle of the descriptor, served from cache file channel;
+     * generated and stored on cache miss. Entry is opened before eviction,
+     * which never evicts the entry being served; entry evicted by concurrent
+     * open in the mean time is generated again.
+     */
+    public InputStream open(URL url, int method) throws IOException {
+        File file = new File(directory, key(url, method) + EXTENSION);
+        FileInputStream input;
+        for (int attempt = 1;; attempt++) {
+            if (!file.isFile()) {
+                store(url, method, file);
+            }
+            try {
+                input = new FileInputStream(file);
+                break;
+            } catch (FileNotFoundException e) {
+                if (attempt == 3) {
+                    throw e;
+                }
+            }
+        }
+        file.setLastModified(System.currentTimeMillis());
+        evict(file);
+        return Channels.newInputStream(input.getChannel());
+    }
+
+    /** path, size and modification time of the file, or null when missing */
+    String stamp(File file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        return file.getAbsolutePath() + "/" + attributes.size() + "/" + attributes.lastModifiedTime().toMillis();
+    }
+
+    /** generate into temporary file, then publish under cache key */
+    void store(URL url, int method, File file) throws IOException {
+        File temp = File.createTempFile("bundle", ".tmp", directory);
+        try {
+            InputStream input = FeatureTransformerXXX.transform(url, method);
+            OutputStream output = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[8192];
+                int len = input.read(buffer);
+                while (len >= 0) {
+                    output.write(buffer, 0, len);
+                    len = input.read(buffer);
+                }
+            } finally {
+                output.close();
+                input.close();
+            }
+            /** concurrent store of the same key is fine, content is equal */
+            if (!temp.renameTo(file) && !file.isFile()) {
+                throw new IOException("Unable to store cache entry: " + file);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /** remove least recently used entries above size limit, except kept one */
+    synchronized void evict(File keep) {
+        File[] list = directory.listFiles(FILTER);
+        if (list == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : list) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(list, new Comparator<File>() {
+            public int compare(File one, File two) {
+                long delta = one.lastModified() - two.lastModified();
+                return delta < 0 ? -1 : delta > 0 ? 1 : 0;
+            }
+        });
+        for (File file : list) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                logger.debug("Evicted cached bundle: " + file);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+}
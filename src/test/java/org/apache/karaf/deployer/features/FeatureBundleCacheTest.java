@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureBundleCacheTest {
+
+	private File folder;
+
+	@Before
+	public void init() {
+		folder = new File("target/test-deployer/"
+				+ getClass().getSimpleName());
+		DeployerFixture.delete(folder);
+		folder.mkdirs();
+	}
+
+	URL descriptor(final String name, final String content) throws Exception {
+		final File file = new File(folder, name + "-1.0.0.xml");
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(content.getBytes("UTF-8"));
+		} finally {
+			output.close();
+		}
+		return file.toURI().toURL();
+	}
+
+	String symbolicName(final InputStream input) throws Exception {
+		final JarInputStream jar = new JarInputStream(input);
+		try {
+			return jar.getManifest().getMainAttributes()
+					.getValue("Bundle-SymbolicName");
+		} finally {
+			jar.close();
+		}
+	}
+
+	@Test
+	public void testChangedDescriptorMisses() throws Exception {
+		final FeatureBundleCache cache = new FeatureBundleCache(new File(
+				folder, "cache"), 1024 * 1024);
+		final URL url = descriptor("repo", "<features name=\"repo\"/>\n");
+		final String key = cache.key(url, ZipEntry.DEFLATED);
+		assertEquals(key, cache.key(url, ZipEntry.DEFLATED));
+		descriptor("repo", "<features name=\"repo\">\n</features>\n");
+		assertFalse(key.equals(cache.key(url, ZipEntry.DEFLATED)));
+	}
+
+	@Test
+	public void testEntryLargerThanLimitIsServed() throws Exception {
+		final FeatureBundleCache cache = new FeatureBundleCache(new File(
+				folder, "cache"), 1);
+		final URL url = descriptor("repo", "<features name=\"repo\"/>\n");
+		assertEquals("repo", symbolicName(cache.open(url, ZipEntry.DEFLATED)));
+		assertEquals("repo", symbolicName(cache.open(url, ZipEntry.STORED)));
+	}
+
+}
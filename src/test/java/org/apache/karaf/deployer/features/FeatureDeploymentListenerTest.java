@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.karaf.features.Feature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+public class FeatureDeploymentListenerTest {
+
+	static final String CONTENT = "<features name=\"repo\"/>\n";
+
+	private DeployerFixture fixture;
+
+	private FeatureDeploymentListener listener;
+
+	@After
+	public void destroy() throws Exception {
+		if (listener != null) {
+			listener.destroy();
+		}
+	}
+
+	@Before
+	public void init() throws Exception {
+		fixture = new DeployerFixture(new File("target/test-deployer/"
+				+ getClass().getSimpleName()));
+		listener = fixture.listener();
+		listener.init();
+	}
+
+	/** start fresh listener over legacy state file only */
+	File legacyStart(final String... entries) throws Exception {
+		listener.destroy();
+		listener = null;
+		fixture.context.getDataFile(FeatureDeploymentListener.JOURNAL)
+				.delete();
+		fixture.context.getDataFile(FeatureDeploymentListener.INDEX).delete();
+		final File file = fixture.context
+				.getDataFile(FeatureDeploymentListener.CFG);
+		RepoPropStoreTest.legacy(file, entries);
+		listener = fixture.listener();
+		listener.init();
+		return file;
+	}
+
+	/** persisted records, read back after listener is stopped */
+	Map<String, RepoRecord> records() throws Exception {
+		listener.destroy();
+		listener = null;
+		final RepoJournalStore store = new RepoJournalStore(
+				fixture.context.getDataFile(FeatureDeploymentListener.JOURNAL),
+				null, 0);
+		try {
+			return store.load();
+		} finally {
+			store.close();
+		}
+	}
+
+	/** all features of the repo are installed, as by addRepository */
+	void assertInstallAll(final int featureThreads, final long batchWindow,
+			final boolean isEventLost) throws Exception {
+
+		fixture.isEventLost = isEventLost;
+		listener.destroy();
+		listener = fixture.listener();
+		listener.setFeatureThreads(featureThreads);
+		listener.setBatchWindow(batchWindow);
+		listener.init();
+
+		fixture.featureMap.put("repo", new Feature[] {
+				DeployerFixture.feature("plain", null),
+				DeployerFixture.feature("auto", Feature.DEFAULT_INSTALL_MODE) });
+		final Bundle bundle = fixture.bundle("repo", CONTENT);
+		fixture.fire(bundle, BundleEvent.INSTALLED);
+		fixture.fire(bundle, BundleEvent.RESOLVED);
+		fixture.quiesce(listener);
+		while (listener.getBatchPending() > 0) {
+			Thread.sleep(20);
+		}
+		listener.destroy();
+		listener = null;
+
+		assertEquals(new TreeSet<String>(Arrays.asList("auto/1.0.0",
+				"plain/1.0.0")), new TreeSet<String>(fixture.installedSet));
+
+	}
+
+	@Test
+	public void testInstallAllBatched() throws Exception {
+		assertInstallAll(1, 50, false);
+	}
+
+	@Test
+	public void testInstallAllBatchedEventLost() throws Exception {
+		assertInstallAll(1, 50, true);
+	}
+
+	@Test
+	public void testInstallAllParallel() throws Exception {
+		assertInstallAll(2, 0, false);
+	}
+
+	@Test
+	public void testInstallAllParallelEventLost() throws Exception {
+		assertInstallAll(2, 0, true);
+	}
+
+	@Test
+	public void testLegacyStateKeptWithUnknownEntries() throws Exception {
+
+		final File file = legacyStart( //
+				"repo-1.0.0.count", "1", //
+				"repo-1.0.0.url.0", RepoPropStoreTest.URL_1, //
+				"multi-1.0.0.count", "2", //
+				"multi-1.0.0.url.0", RepoPropStoreTest.URL_1, //
+				"multi-1.0.0.url.1", RepoPropStoreTest.URL_2);
+
+		assertTrue(file.exists());
+		final Map<String, RepoRecord> records = records();
+		assertEquals(1, records.size());
+		assertNotNull(records.get("repo"));
+
+	}
+
+	@Test
+	public void testLegacyStateMigrated() throws Exception {
+
+		final File file = legacyStart( //
+				"my-repo-1.2.3.count", "1", //
+				"my-repo-1.2.3.url.0", RepoPropStoreTest.URL_1, //
+				"gone-1.0.0.count", "0");
+
+		assertFalse(file.exists());
+		assertTrue(new File(file.getPath() + ".migrated").exists());
+		final RepoRecord record = records().get("my-repo");
+		assertEquals("1.2.3", record.version);
+		assertEquals(new URI(RepoPropStoreTest.URL_1), record.uri);
+
+	}
+
+	@Test
+	public void testMissedRepositoryEvent() throws Exception {
+
+		fixture.isEventLost = true;
+
+		final Bundle bundle = fixture.bundle("repo", CONTENT);
+		fixture.fire(bundle, BundleEvent.INSTALLED);
+		fixture.fire(bundle, BundleEvent.RESOLVED);
+		fixture.quiesce(listener);
+		assertNotNull(fixture.repoURI("repo"));
+
+		/** index never saw the add, features service has the repo */
+		fixture.fire(bundle, BundleEvent.UNINSTALLED);
+		fixture.quiesce(listener);
+		assertNull(fixture.repoURI("repo"));
+		assertTrue(records().isEmpty());
+
+	}
+
+	@Test
+	public void testRebindThenStaleUninstall() throws Exception {
+
+		final Bundle bundle1 = fixture.bundle("repo", CONTENT);
+		fixture.fire(bundle1, BundleEvent.INSTALLED);
+		fixture.fire(bundle1, BundleEvent.RESOLVED);
+		fixture.quiesce(listener);
+		assertEquals(fixture.repoUrl(bundle1).toURI(),
+				fixture.repoURI("repo"));
+
+		/** same content: repo moves to new bundle without redeploy */
+		final Bundle bundle2 = fixture.bundle("repo", CONTENT);
+		fixture.fire(bundle2, BundleEvent.INSTALLED);
+		fixture.fire(bundle2, BundleEvent.RESOLVED);
+		fixture.quiesce(listener);
+		assertEquals(fixture.repoUrl(bundle2).toURI(),
+				fixture.repoURI("repo"));
+
+		/** old bundle goes away after the rebind */
+		fixture.fire(bundle1, BundleEvent.UNINSTALLED);
+		fixture.quiesce(listener);
+		assertEquals(fixture.repoUrl(bundle2).toURI(),
+				fixture.repoURI("repo"));
+
+		final Map<String, RepoRecord> records = records();
+		assertEquals(1, records.size());
+		assertEquals(fixture.repoUrl(bundle2).toURI(),
+				records.get("repo").uri);
+
+	}
+
+	@Test
+	public void testUninstallRemovesRepoAndRecord() throws Exception {
+
+		final Bundle bundle = fixture.bundle("repo", CONTENT);
+		fixture.fire(bundle, BundleEvent.INSTALLED);
+		fixture.fire(bundle, BundleEvent.RESOLVED);
+		fixture.quiesce(listener);
+		assertNotNull(fixture.repoURI("repo"));
+
+		fixture.fire(bundle, BundleEvent.UNINSTALLED);
+		fixture.quiesce(listener);
+		assertNull(fixture.repoURI("repo"));
+
+		assertTrue(records().isEmpty());
+
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Test;
+
+public class FeatureTransformerTest {
+
+	/** descriptor url which serves next content on each open */
+	static URL descriptor(final String... contents) throws Exception {
+		final AtomicInteger openCount = new AtomicInteger();
+		return new URL("test", null, -1, "/repo-1.0.0.xml",
+				new URLStreamHandler() {
+					@Override
+					protected URLConnection openConnection(final URL url) {
+						return new URLConnection(url) {
+							@Override
+							public void connect() {
+							}
+
+							@Override
+							public InputStream getInputStream()
+									throws IOException {
+								final int index = Math.min(
+										openCount.getAndIncrement(),
+										contents.length - 1);
+								return new ByteArrayInputStream(
+										contents[index].getBytes("UTF-8"));
+							}
+						};
+					}
+				});
+	}
+
+	static String read(final InputStream input) throws Exception {
+		final JarInputStream jar = new JarInputStream(input);
+		try {
+			JarEntry entry = jar.getNextJarEntry();
+			while (entry != null && !entry.getName().endsWith(".xml")) {
+				entry = jar.getNextJarEntry();
+			}
+			assertNotNull(entry);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[256];
+			int len = jar.read(buffer);
+			while (len >= 0) {
+				output.write(buffer, 0, len);
+				len = jar.read(buffer);
+			}
+			return output.toString("UTF-8");
+		} finally {
+			jar.close();
+		}
+	}
+
+	@Test
+	public void testCloseBeforeEnd() throws Exception {
+		final InputStream input = FeatureTransformerXXX.transform(
+				descriptor("<features/>"), ZipEntry.DEFLATED);
+		assertTrue(input.read() >= 0);
+		input.close();
+		assertEquals(-1, input.read());
+	}
+
+	@Test
+	public void testStoredEntry() throws Exception {
+		assertEquals("<features/>", read(FeatureTransformerXXX.transform(
+				descriptor("<features/>"), ZipEntry.STORED)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testStoredEntryOfChangedDescriptor() throws Exception {
+		read(FeatureTransformerXXX.transform(
+				descriptor("<features/>", "<features></features>"),
+				ZipEntry.STORED));
+	}
+
+	@Test(expected = IOException.class)
+	public void testStoredEntryOfSameSizeChange() throws Exception {
+		read(FeatureTransformerXXX.transform(
+				descriptor("<features/>", "<feature/>s"), ZipEntry.STORED));
+	}
+
+}
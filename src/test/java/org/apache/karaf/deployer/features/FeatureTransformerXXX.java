@@ -17,6 +17,7 @@
  */
 package org.apache.karaf.deployer.features;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,6 +25,7 @@ import java.net.URL;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 
 import org.apache.karaf.deployer.features.FeatureDeploymentListener;
@@ -35,42 +37,260 @@ import org.osgi.framework.Constants;
  */
 public class FeatureTransformerXXX {
 
+    /** version of generated bundle layout, part of bundle cache key */
+    public static final String VERSION = "1";
+
+    /**
+     * Jar generator behind an input stream: each step emits a small chunk of
+     * the jar, so descriptor is never held in memory as a whole.
+     */
+    static class TransformStream extends InputStream {
+
+        /** jar output collected by the current step */
+        static class Chunk extends ByteArrayOutputStream {
+
+            int position;
+
+            int read(byte[] b, int off, int len) {
+                int size = Math.min(len, count - position);
+                System.arraycopy(buf, position, b, off, size);
+                position += size;
+                return size;
+            }
+
+            boolean isDrained() {
+                return position == count;
+            }
+
+            void restart() {
+                reset();
+                position = 0;
+            }
+
+        }
+
+        static final int STEP_HEADER = 0;
+
+        static final int STEP_BODY = 1;
+
+        static final int STEP_TRAILER = 2;
+
+        static final int STEP_DONE = 3;
+
+        private final byte[] buffer = new byte[8192];
+
+        /** crc of descriptor content copied into stored entry */
+        private final CRC32 bodyCrc = new CRC32();
+
+        /** size of descriptor content copied into the jar */
+        private long bodySize;
+
+        private final Chunk chunk = new Chunk();
+
+        private final URL url;
+
+        /** entry method, ZipEntry.DEFLATED or ZipEntry.STORED */
+        private final int method;
+
+        private InputStream input;
+
+        private JarOutputStream jar;
+
+        /** descriptor entry, with size and crc up front when stored */
+        private ZipEntry descriptor;
+
+        private final byte[] single = new byte[1];
+
+        private int step = STEP_HEADER;
+
+        TransformStream(URL url, int method) throws IOException {
+            this.url = url;
+            this.method = method;
+            this.input = url.openStream();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int len = read(single, 0, 1);
+            return len < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk.isDrained()) {
+                if (step == STEP_DONE) {
+                    return -1;
+                }
+                chunk.restart();
+                advance();
+            }
+            return chunk.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            step = STEP_DONE;
+            try {
+                if (jar != null) {
+                    /** releases deflater of unfinished jar, output is dropped */
+                    jar.close();
+                }
+            } catch (IOException e) {
+                /** unfinished entry, reader gave up on the bundle anyway */
+            } finally {
+                jar = null;
+                chunk.restart();
+                if (input != null) {
+                    input.close();
+                    input = null;
+                }
+            }
+        }
+
+        /** stored entry promised size and crc, so content must not change */
+        private void verify(boolean isComplete) throws IOException {
+            if (descriptor.getMethod() != ZipEntry.STORED) {
+                return;
+            }
+            boolean isChanged = bodySize > descriptor.getSize();
+            if (isComplete) {
+                isChanged |= bodySize != descriptor.getSize() || bodyCrc.getValue() != descriptor.getCrc();
+            }
+            if (isChanged) {
+                throw new IOException("Descriptor changed while generating bundle: " + url);
+            }
+        }
+
+        /**
+         * Descriptor entry; stored entry needs size and crc up front, so
+         * descriptor is read twice, each time streaming, and second read is
+         * verified against the first.
+         */
+        private ZipEntry descriptorEntry(String name) throws IOException {
+            ZipEntry e = new ZipEntry(name);
+            if (method == ZipEntry.STORED) {
+                CRC32 crc = new CRC32();
+                long size = 0;
+                int len = input.read(buffer);
+                while (len >= 0) {
+                    crc.update(buffer, 0, len);
+                    size += len;
+                    len = input.read(buffer);
+                }
+                input.close();
+                input = url.openStream();
+                e.setMethod(ZipEntry.STORED);
+                e.setSize(size);
+                e.setCompressedSize(size);
+                e.setCrc(crc.getValue());
+            }
+            return e;
+        }
+
+        /** entry with known content */
+        private ZipEntry entry(String name, byte[] content) {
+            ZipEntry e = new ZipEntry(name);
+            if (method == ZipEntry.STORED) {
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                e.setMethod(ZipEntry.STORED);
+                e.setSize(content.length);
+                e.setCompressedSize(content.length);
+                e.setCrc(crc.getValue());
+            }
+            return e;
+        }
+
+        /** run next generator step into the chunk */
+        private void advance() throws IOException {
+            switch (step) {
+            case STEP_HEADER:
+                String name = getName(url);
+                ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                getManifest(name).write(manifest);
+                jar = new JarOutputStream(chunk);
+                jar.putNextEntry(entry(JarFile.MANIFEST_NAME, manifest.toByteArray()));
+                manifest.writeTo(jar);
+                jar.closeEntry();
+                jar.putNextEntry(entry("META-INF/", new byte[0]));
+                jar.putNextEntry(entry("META-INF/" + FeatureDeploymentListener.FEATURE_PATH + "/", new byte[0]));
+                jar.closeEntry();
+                descriptor = descriptorEntry("META-INF/" + FeatureDeploymentListener.FEATURE_PATH + "/" + name);
+                jar.putNextEntry(descriptor);
+                step = STEP_BODY;
+                break;
+            case STEP_BODY:
+                int len = input.read(buffer);
+                if (len < 0) {
+                    input.close();
+                    input = null;
+                    verify(true);
+                    step = STEP_TRAILER;
+                } else {
+                    bodyCrc.update(buffer, 0, len);
+                    bodySize += len;
+                    verify(false);
+                    jar.write(buffer, 0, len);
+                }
+                break;
+            case STEP_TRAILER:
+                jar.closeEntry();
+                jar.close();
+                jar = null;
+                step = STEP_DONE;
+                break;
+            }
+        }
+
+    }
+
+    /**
+     * Repository bundle of the descriptor as a lazily generated stream; heap
+     * use does not depend on descriptor size.
+     */
+    public static InputStream transform(URL url) throws IOException {
+        return transform(url, ZipEntry.DEFLATED);
+    }
+
+    /**
+     * Repository bundle with given entry method; ZipEntry.STORED skips
+     * deflate and inflate of bundles which never leave the machine.
+     */
+    public static InputStream transform(URL url, int method) throws IOException {
+        return new TransformStream(url, method);
+    }
+
     public static void transform(URL url, OutputStream os) throws Exception {
-        // Heuristicly retrieve name and version
-        String name = getPath(url);
-        int idx = name.lastIndexOf('/');
-        if (idx >= 0) {
-            name = name.substring(idx + 1);
+        InputStream is = transform(url);
+        try {
+            copyInputStream(is, os);
+        } finally {
+            is.close();
         }
+        os.close();
+    }
+
+    private static Manifest getManifest(String name) {
         String[] str = DeployerUtils.extractNameVersionType(name);
-        // Create manifest
         Manifest m = new Manifest();
         m.getMainAttributes().putValue("Manifest-Version", "2");
         m.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
         m.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, str[0]);
         m.getMainAttributes().putValue(Constants.BUNDLE_VERSION, str[1]);
-        // Put content
-        JarOutputStream out = new JarOutputStream(os);
-        ZipEntry e = new ZipEntry(JarFile.MANIFEST_NAME);
-        out.putNextEntry(e);
-        m.write(out);
-        out.closeEntry();
-        e = new ZipEntry("META-INF/");
-        out.putNextEntry(e);
-        e = new ZipEntry("META-INF/" + FeatureDeploymentListener.FEATURE_PATH + "/");
-        out.putNextEntry(e);
-        out.closeEntry();
-        e = new ZipEntry("META-INF/" + FeatureDeploymentListener.FEATURE_PATH + "/" + name);
-        out.putNextEntry(e);
-        InputStream fis = url.openStream();
-        try {
-            copyInputStream(fis, out);
-        } finally {
-            fis.close();
+        return m;
+    }
+
+    // Heuristicly retrieve name and version
+    static String getName(URL url) {
+        String name = getPath(url);
+        int idx = name.lastIndexOf('/');
+        if (idx >= 0) {
+            name = name.substring(idx + 1);
         }
-        out.closeEntry();
-        out.close();
-        os.close();
+        return name;
     }
 
     private static String getPath(URL url) {
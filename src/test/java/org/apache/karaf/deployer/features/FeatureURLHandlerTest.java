@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Concurrent opens of different feature urls through one handler.
+ */
+public class FeatureURLHandlerTest {
+
+	static final int ROUNDS = 50;
+
+	static final int THREADS = 8;
+
+	static String content(final int index) {
+		return "<features name=\"repo-" + index + "\"><!-- " + index
+				+ " --></features>\n";
+	}
+
+	private File folder;
+
+	@Before
+	public void init() {
+		folder = new File("target/test-deployer/"
+				+ getClass().getSimpleName());
+		DeployerFixture.delete(folder);
+		folder.mkdirs();
+	}
+
+	/** feature url of the descriptor file, as the deployer builds it */
+	URL featureURL(final int index) throws Exception {
+		final File file = new File(folder, "repo-" + index + "-1.0.0.xml");
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(content(index).getBytes("UTF-8"));
+		} finally {
+			output.close();
+		}
+		return new URL("feature", null, -1, file.toURI().toURL()
+				.toExternalForm(), new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(final URL url)
+					throws IOException {
+				throw new IOException("Handler under test opens: " + url);
+			}
+		});
+	}
+
+	/** each thread opens its own descriptor; every bundle must hold it */
+	void open(final FeatureURLHandlerXXX handler) throws Exception {
+		final List<URL> urlList = new ArrayList<URL>();
+		for (int index = 0; index < THREADS; index++) {
+			urlList.add(featureURL(index));
+		}
+		final List<Throwable> errorList = new CopyOnWriteArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threadList = new ArrayList<Thread>();
+		for (int index = 0; index < THREADS; index++) {
+			final int own = index;
+			final Thread thread = new Thread("open-" + index) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int round = 0; round < ROUNDS; round++) {
+							final URLConnection connection = handler
+									.openConnection(urlList.get(own));
+							assertEquals(content(own),
+									FeatureTransformerTest.read(connection
+											.getInputStream()));
+						}
+					} catch (final Throwable e) {
+						errorList.add(e);
+					}
+				}
+			};
+			thread.start();
+			threadList.add(thread);
+		}
+		start.countDown();
+		for (final Thread thread : threadList) {
+			thread.join();
+		}
+		assertTrue(errorList.toString(), errorList.isEmpty());
+	}
+
+	@Test(timeout = 60 * 1000)
+	public void testConcurrentOpenCached() throws Exception {
+		final FeatureURLHandlerXXX handler = new FeatureURLHandlerXXX();
+		handler.setCache(new FeatureBundleCache(new File(folder, "cache"),
+				1024 * 1024));
+		open(handler);
+	}
+
+	@Test(timeout = 60 * 1000)
+	public void testConcurrentOpenDeflated() throws Exception {
+		open(new FeatureURLHandlerXXX());
+	}
+
+	@Test(timeout = 60 * 1000)
+	public void testConcurrentOpenStored() throws Exception {
+		final FeatureURLHandlerXXX handler = new FeatureURLHandlerXXX();
+		handler.setStored(true);
+		open(handler);
+	}
+
+}
@@ -16,13 +16,12 @@
  */
 package org.apache.karaf.deployer.features;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.zip.ZipEntry;
 
 import org.osgi.service.url.AbstractURLStreamHandlerService;
 import org.slf4j.Logger;
@@ -37,7 +36,9 @@ public class FeatureURLHandlerXXX extends AbstractURLStreamHandlerService {
 
     private static String SYNTAX = "feature: xml-uri";
 
-    private URL featureXmlURL;
+    private FeatureBundleCache cache;
+
+    private boolean stored;
 
     /**
      * Open the connection for the given URL.
@@ -51,20 +52,48 @@ public class FeatureURLHandlerXXX extends AbstractURLStreamHandlerService {
         if (url.getPath() == null || url.getPath().trim().length() == 0) {
             throw new MalformedURLException("Path cannot be null or empty. Syntax: " + SYNTAX );
         }
-        featureXmlURL = new URL(url.getPath());
+        URL featureXmlURL = new URL(url.getPath());
 
         logger.debug("Features xml URL is: [" + featureXmlURL + "]");
-        return new Connection(url);
+        return new Connection(url, featureXmlURL);
+    }
+
+    public FeatureBundleCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Cache of generated bundles, usually in bundle data directory; null
+     * generates bundle on every open.
+     */
+    public void setCache(FeatureBundleCache cache) {
+        this.cache = cache;
     }
 
-    public URL getFeatureXmlURL() {
-        return featureXmlURL;
+    public boolean isStored() {
+        return stored;
     }
 
+    /** emit generated bundle entries uncompressed */
+    public void setStored(boolean stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Connection carries its own source url, so handler is re-entrant and
+     * concurrent opens of different descriptors do not interfere.
+     */
     public class Connection extends URLConnection {
 
-        public Connection(URL url) {
+        private final URL featureXmlURL;
+
+        public Connection(URL url, URL featureXmlURL) {
             super(url);
+            this.featureXmlURL = featureXmlURL;
+        }
+
+        public URL getFeatureXmlURL() {
+            return featureXmlURL;
         }
 
         @Override
@@ -74,10 +103,11 @@ public class FeatureURLHandlerXXX extends AbstractURLStreamHandlerService {
         @Override
         public InputStream getInputStream() throws IOException {
             try {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                FeatureTransformerXXX.transform(featureXmlURL, os);
-                os.close();
-                return new ByteArrayInputStream(os.toByteArray());
+                int method = stored ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                if (cache != null) {
+                    return cache.open(featureXmlURL, method);
+                }
+                return FeatureTransformerXXX.transform(featureXmlURL, method);
             } catch (Exception e) {
                 logger.error("Error opening features xml url", e);
                 throw (IOException) new IOException("Error opening features xml url").initCause(e);
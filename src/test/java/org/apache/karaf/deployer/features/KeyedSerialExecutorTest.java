@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class KeyedSerialExecutorTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+	private final List<String> runList = new CopyOnWriteArrayList<String>();
+
+	/** task which records its name, after the gate opens */
+	Runnable task(final String name) {
+		return new Runnable() {
+			public void run() {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				runList.add(name);
+			}
+		};
+	}
+
+	@After
+	public void destroy() {
+		gate.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testBoundCountsQueuedTasksOfSingleLane() throws Exception {
+		final KeyedSerialExecutor lanes = new KeyedSerialExecutor(executor,
+				3, false, 0);
+		assertTrue(lanes.execute("repo", task("1")));
+		assertTrue(lanes.execute("repo", task("2")));
+		assertTrue(lanes.execute("repo", task("3")));
+		assertFalse(lanes.execute("repo", task("4")));
+		assertFalse(lanes.execute("other", task("5")));
+		assertEquals(3, lanes.taskCount());
+		assertEquals(2, lanes.rejectedCount());
+
+		gate.countDown();
+		assertTrue(lanes.awaitIdle(5000));
+		assertEquals(0, lanes.taskCount());
+		assertEquals("[1, 2, 3]", runList.toString());
+	}
+
+	@Test
+	public void testWaitForRoomKeepsLaneOrder() throws Exception {
+		final KeyedSerialExecutor lanes = new KeyedSerialExecutor(executor,
+				1, true, 5000);
+		assertTrue(lanes.execute("repo", task("1")));
+		final Thread opener = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				gate.countDown();
+			}
+		};
+		opener.start();
+		assertTrue(lanes.execute("repo", task("2")));
+		assertTrue(lanes.awaitIdle(5000));
+		assertEquals("[1, 2]", runList.toString());
+	}
+
+	@Test
+	public void testStopReleasesWaitingSubmitter() throws Exception {
+		final KeyedSerialExecutor lanes = new KeyedSerialExecutor(executor,
+				1, true, 60000);
+		assertTrue(lanes.execute("repo", task("1")));
+		final Thread stopper = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				lanes.stop();
+			}
+		};
+		stopper.start();
+		assertFalse(lanes.execute("repo", task("2")));
+		assertEquals(1, lanes.rejectedCount());
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepoJournalStoreTest {
+
+	static RepoRecord record(final String name, final String version)
+			throws Exception {
+		return new RepoRecord(name, version, new URI("file:/repo/" + name
+				+ "-" + version + ".xml"), "digest-" + version);
+	}
+
+	private File file;
+
+	@Before
+	public void init() {
+		final File folder = new File("target/test-deployer/"
+				+ getClass().getSimpleName());
+		DeployerFixture.delete(folder);
+		folder.mkdirs();
+		file = new File(folder, FeatureDeploymentListener.JOURNAL);
+	}
+
+	Map<String, RepoRecord> load() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		try {
+			return store.load();
+		} finally {
+			store.close();
+		}
+	}
+
+	/** cut journal file, as a crash in the middle of an append does */
+	void tear(final long size) throws Exception {
+		final RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+			output.setLength(size);
+		} finally {
+			output.close();
+		}
+	}
+
+	@Test
+	public void testUnknownRecordSkipped() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		/** valid frame of a record type from a newer store */
+		store.append(new byte[] { 99, 0, 4, 'r', 'e', 'p', 'o' });
+		store.put(record("other", "1.0.0"));
+		store.close();
+		final long size = file.length();
+
+		final Map<String, RepoRecord> recordMap = load();
+		assertEquals(size, file.length());
+		assertEquals(2, recordMap.size());
+		assertEquals("1.0.0", recordMap.get("repo").version);
+		assertEquals("1.0.0", recordMap.get("other").version);
+	}
+
+	@Test
+	public void testShortRecordKeepsPrefix() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		final long validSize = file.length();
+		/** valid frame whose payload ends inside the name */
+		store.append(new byte[] { RepoJournalStore.RECORD_PUT, 0, 9, 'r' });
+		store.put(record("other", "1.0.0"));
+		store.close();
+
+		final Map<String, RepoRecord> recordMap = load();
+		assertEquals(validSize, file.length());
+		assertEquals(1, recordMap.size());
+		assertEquals("1.0.0", recordMap.get("repo").version);
+	}
+
+	@Test
+	public void testTornHeader() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		store.load();
+		store.close();
+		tear(2);
+
+		final RepoJournalStore recover = new RepoJournalStore(file, null, 0);
+		assertTrue(recover.load().isEmpty());
+		recover.put(record("repo", "1.0.0"));
+		recover.close();
+
+		assertEquals("1.0.0", load().get("repo").version);
+	}
+
+	@Test
+	public void testTornTail() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		store.put(record("other", "1.0.0"));
+		store.close();
+		final long validSize = file.length();
+
+		final RepoJournalStore append = new RepoJournalStore(file, null, 0);
+		append.load();
+		append.put(record("repo", "2.0.0"));
+		append.close();
+		tear(file.length() - 3);
+
+		/** torn record is dropped and cut off, journal stays appendable */
+		final RepoJournalStore recover = new RepoJournalStore(file, null, 0);
+		final Map<String, RepoRecord> recordMap = recover.load();
+		assertEquals(validSize, file.length());
+		assertEquals(2, recordMap.size());
+		assertEquals("1.0.0", recordMap.get("repo").version);
+		recover.remove("other");
+		recover.close();
+
+		final Map<String, RepoRecord> reload = load();
+		assertEquals(1, reload.size());
+		assertEquals("1.0.0", reload.get("repo").version);
+	}
+
+	@Test
+	public void testCorruptTail() throws Exception {
+		final RepoJournalStore store = new RepoJournalStore(file, null, 0);
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		store.put(record("repo", "2.0.0"));
+		store.close();
+
+		/** flip last byte of crc of the last record */
+		final RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+			output.seek(file.length() - 1);
+			final int last = output.read();
+			output.seek(file.length() - 1);
+			output.write(last ^ 0xFF);
+		} finally {
+			output.close();
+		}
+
+		assertEquals("1.0.0", load().get("repo").version);
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Concurrent add, remove and replace of the same repo name, through event
+ * ring, coalescer, repo lanes and repo signal.
+ */
+public class RepoLaneStressTest {
+
+	static final int ROUNDS = 40;
+
+	static final int THREADS = 4;
+
+	private DeployerFixture fixture;
+
+	private FeatureDeploymentListener listener;
+
+	@After
+	public void destroy() throws Exception {
+		if (listener != null) {
+			listener.destroy();
+		}
+	}
+
+	/** repo uri registered for a live bundle, or null when none is */
+	void assertConsistent(final List<Bundle> liveList) throws Exception {
+		final URI repoURI = fixture.repoURI("repo");
+		if (repoURI == null) {
+			return;
+		}
+		for (final Bundle bundle : liveList) {
+			if (repoURI.equals(fixture.repoUrl(bundle).toURI())) {
+				return;
+			}
+		}
+		fail("Repo registered for gone bundle: " + repoURI);
+	}
+
+	/**
+	 * wait until nothing is captured, pending or running; adds of changed
+	 * content stay parked while their predecessor bundle is live
+	 */
+	void settle() throws InterruptedException {
+		int idle = 0;
+		while (idle < 3) {
+			Thread.sleep(20);
+			final boolean isIdle = listener.getEventRingPending() == 0
+					&& listener.getCoalescePending() == 0
+					&& listener.getExecutorLaneCount() == 0;
+			idle = isIdle ? idle + 1 : 0;
+		}
+	}
+
+	/** random storm, then a final bundle which must win */
+	void storm(final long coalesceWindow) throws Exception {
+
+		fixture = new DeployerFixture(new File("target/test-deployer/"
+				+ getClass().getSimpleName()));
+		fixture.latency = 1;
+		listener = fixture.listener();
+		listener.setCoalesceWindow(coalesceWindow);
+		listener.init();
+
+		final List<Bundle> liveList = new CopyOnWriteArrayList<Bundle>();
+		final List<Throwable> errorList = new CopyOnWriteArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threadList = new ArrayList<Thread>();
+
+		for (int index = 0; index < THREADS; index++) {
+			final int seed = index;
+			final Thread thread = new Thread("storm-" + index) {
+				@Override
+				public void run() {
+					final Random random = new Random(seed);
+					final List<Bundle> ownList = new ArrayList<Bundle>();
+					try {
+						start.await();
+						for (int round = 0; round < ROUNDS; round++) {
+							/** same content rebinds, new content replaces */
+							final String content = random.nextBoolean() ? "<features name=\"repo\"/>\n"
+									: "<features name=\"repo\"><!-- " + seed
+											+ "-" + round + " --></features>\n";
+							final Bundle bundle = fixture.bundle("repo",
+									content);
+							liveList.add(bundle);
+							ownList.add(bundle);
+							fixture.fire(bundle, BundleEvent.INSTALLED);
+							fixture.fire(bundle, BundleEvent.RESOLVED);
+							if (random.nextInt(3) == 0) {
+								final Bundle gone = ownList.remove(random
+										.nextInt(ownList.size()));
+								liveList.remove(gone);
+								fixture.fire(gone, BundleEvent.UNINSTALLED);
+							}
+							if (random.nextInt(4) == 0) {
+								Thread.sleep(random.nextInt(3));
+							}
+						}
+					} catch (final Throwable e) {
+						errorList.add(e);
+					}
+				}
+			};
+			thread.start();
+			threadList.add(thread);
+		}
+
+		start.countDown();
+		for (final Thread thread : threadList) {
+			thread.join();
+		}
+		assertTrue(errorList.toString(), errorList.isEmpty());
+
+		settle();
+		assertConsistent(liveList);
+		assertTrue(listener.getRepoWaitCount() <= 1);
+
+		/** last deployed bundle wins, stale removes leave it alone */
+		final Bundle last = fixture.bundle("repo",
+				"<features name=\"repo\"><!-- last --></features>\n");
+		fixture.fire(last, BundleEvent.INSTALLED);
+		fixture.fire(last, BundleEvent.RESOLVED);
+		settle();
+		for (final Bundle bundle : liveList) {
+			fixture.fire(bundle, BundleEvent.UNINSTALLED);
+		}
+		fixture.quiesce(listener);
+
+		final URI lastURI = fixture.repoUrl(last).toURI();
+		assertEquals(lastURI, fixture.repoURI("repo"));
+		assertEquals(1, fixture.repoMap.size());
+
+		listener.destroy();
+		listener = null;
+		final RepoJournalStore store = new RepoJournalStore(
+				fixture.context.getDataFile(FeatureDeploymentListener.JOURNAL),
+				null, 0);
+		try {
+			final Map<String, RepoRecord> records = store.load();
+			assertEquals(1, records.size());
+			assertEquals(lastURI, records.get("repo").uri);
+		} finally {
+			store.close();
+		}
+
+	}
+
+	@Test(timeout = 60 * 1000)
+	public void testStormCoalesced() throws Exception {
+		storm(5);
+	}
+
+	@Test(timeout = 60 * 1000)
+	public void testStormDirect() throws Exception {
+		storm(0);
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepoMappedStoreTest {
+
+	static RepoRecord record(final String name, final String version)
+			throws Exception {
+		return RepoJournalStoreTest.record(name, version);
+	}
+
+	static String text(final int length) {
+		final char[] text = new char[length];
+		Arrays.fill(text, 'x');
+		return new String(text);
+	}
+
+	private File file;
+
+	@Before
+	public void init() {
+		final File folder = new File("target/test-deployer/"
+				+ getClass().getSimpleName());
+		DeployerFixture.delete(folder);
+		folder.mkdirs();
+		file = new File(folder, FeatureDeploymentListener.INDEX);
+	}
+
+	/** store which crashes between write of new slot and release of old */
+	RepoMappedStore crashStore() {
+		return new RepoMappedStore(file, null, 0) {
+			@Override
+			void release(final int slot) {
+			}
+		};
+	}
+
+	Map<String, RepoRecord> load() throws Exception {
+		final RepoMappedStore store = new RepoMappedStore(file, null, 0);
+		try {
+			return store.load();
+		} finally {
+			store.close();
+		}
+	}
+
+	/** number of slots marked used in the file */
+	int usedCount() throws Exception {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			int count = 0;
+			final long slotCount = (input.length() - RepoMappedStore.HEADER_SIZE)
+					/ RepoMappedStore.RECORD_SIZE;
+			for (int slot = 0; slot < slotCount; slot++) {
+				input.seek(RepoMappedStore.HEADER_SIZE + (long) slot
+						* RepoMappedStore.RECORD_SIZE);
+				count += input.read() == 0 ? 0 : 1;
+			}
+			return count;
+		} finally {
+			input.close();
+		}
+	}
+
+	@Test
+	public void testDuplicateNewerInHigherSlot() throws Exception {
+		final RepoMappedStore store = crashStore();
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		store.put(record("repo", "2.0.0"));
+		store.close();
+		assertEquals(2, usedCount());
+
+		assertEquals("2.0.0", load().get("repo").version);
+		assertEquals(1, usedCount());
+	}
+
+	@Test
+	public void testDuplicateNewerInLowerSlot() throws Exception {
+		final RepoMappedStore store = new RepoMappedStore(file, null, 0);
+		store.load();
+		store.put(record("first", "1.0.0"));
+		store.put(record("repo", "1.0.0"));
+		store.remove("first");
+		store.close();
+
+		/** replacement takes freed slot in front of the older record */
+		final RepoMappedStore crash = crashStore();
+		crash.load();
+		crash.put(record("repo", "2.0.0"));
+		crash.close();
+		assertEquals(2, usedCount());
+
+		final Map<String, RepoRecord> recordMap = load();
+		assertEquals(1, recordMap.size());
+		assertEquals("2.0.0", recordMap.get("repo").version);
+		assertEquals(1, usedCount());
+	}
+
+	@Test
+	public void testOverflowLeavesStoreIntact() throws Exception {
+		final RepoMappedStore store = new RepoMappedStore(file, null, 0);
+		store.load();
+		store.put(record("repo", "1.0.0"));
+		try {
+			store.put(new RepoRecord(text(RepoMappedStore.NAME_MAX + 1),
+					"1.0.0", new URI("file:/repo.xml"), null));
+			fail("name overflow");
+		} catch (IOException e) {
+		}
+		try {
+			store.put(new RepoRecord("repo", "2.0.0", new URI("file:/"
+					+ text(RepoMappedStore.URI_MAX)), null));
+			fail("uri overflow");
+		} catch (IOException e) {
+		}
+		store.put(new RepoRecord(text(RepoMappedStore.NAME_MAX), "1.0.0",
+				new URI("file:/" + text(RepoMappedStore.URI_MAX - 6)), null));
+		store.close();
+
+		final Map<String, RepoRecord> recordMap = load();
+		assertEquals(2, recordMap.size());
+		assertEquals("1.0.0", recordMap.get("repo").version);
+		assertEquals(RepoMappedStore.URI_MAX,
+				recordMap.get(text(RepoMappedStore.NAME_MAX)).uri.toString()
+						.length());
+		assertEquals(2, usedCount());
+	}
+
+	@Test
+	public void testRecordLayout() {
+		/** offsets of files written by earlier releases */
+		assertEquals(16, RepoMappedStore.OFFSET_NAME);
+		assertEquals(274, RepoMappedStore.OFFSET_VERSION);
+		assertEquals(404, RepoMappedStore.OFFSET_URI);
+		assertEquals(1430, RepoMappedStore.OFFSET_DIGEST);
+		assertTrue(RepoMappedStore.RECORD_END <= RepoMappedStore.RECORD_SIZE);
+	}
+
+}
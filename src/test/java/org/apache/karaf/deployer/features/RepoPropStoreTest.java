@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepoPropStoreTest {
+
+	static final String URL_1 = "bundle://12.0:1/META-INF/"
+			+ "org.apache.karaf.shell.features/my-repo.repository";
+
+	static final String URL_2 = "bundle://13.0:1/META-INF/"
+			+ "org.apache.karaf.shell.features/other.repository";
+
+	/** state file as written by the first listener */
+	static void legacy(final File file, final String... entries)
+			throws Exception {
+		final Properties props = new Properties();
+		for (int index = 0; index < entries.length; index += 2) {
+			props.setProperty(entries[index], entries[index + 1]);
+		}
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			props.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+
+	private File folder;
+
+	@Before
+	public void init() {
+		folder = new File("target/test-deployer/"
+				+ getClass().getSimpleName());
+		DeployerFixture.delete(folder);
+		folder.mkdirs();
+	}
+
+	@Test
+	public void testLegacyLayout() throws Exception {
+		final File file = new File(folder, FeatureDeploymentListener.CFG);
+		legacy(file, //
+				"my-repo-1.0.0.count", "1", //
+				"my-repo-1.0.0.url.0", URL_1, //
+				"empty-1.0.0.count", "0", //
+				"multi-2.0.0.2013-01-01.count", "2", //
+				"multi-2.0.0.2013-01-01.url.0", URL_1, //
+				"multi-2.0.0.2013-01-01.url.1", URL_2);
+		final RepoPropStore store = new RepoPropStore(file);
+		final Map<String, RepoRecord> records = store.load();
+		assertEquals(1, records.size());
+		final RepoRecord record = records.get("my-repo");
+		assertEquals("1.0.0", record.version);
+		assertEquals(new URI(URL_1), record.uri);
+		assertNull(record.digest);
+		assertEquals(new TreeSet<String>(Arrays.asList(
+				"multi-2.0.0.2013-01-01.count",
+				"multi-2.0.0.2013-01-01.url.0",
+				"multi-2.0.0.2013-01-01.url.1")), store.unknownKeys());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final File file = new File(folder, FeatureDeploymentListener.CFG);
+		final RepoPropStore store = new RepoPropStore(file);
+		store.put(new RepoRecord("repo", "1.0.0", new URI(URL_2), "abc"));
+		final RepoPropStore reload = new RepoPropStore(file);
+		final RepoRecord record = reload.load().get("repo");
+		assertEquals(new URI(URL_2), record.uri);
+		assertEquals("abc", record.digest);
+		assertTrue(reload.unknownKeys().isEmpty());
+	}
+
+	@Test
+	public void testVersionSplit() {
+		assertEquals(4, RepoPropStore.versionSplit("repo-1.0.0"));
+		assertEquals(7, RepoPropStore.versionSplit("my-repo-1.0.0.SNAPSHOT"));
+		assertEquals(4, RepoPropStore.versionSplit("my-1-2.0.0.a-b"));
+		assertEquals(-1, RepoPropStore.versionSplit("repo"));
+		assertEquals(-1, RepoPropStore.versionSplit("my-repo"));
+	}
+
+}